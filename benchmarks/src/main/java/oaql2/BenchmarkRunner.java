@@ -0,0 +1,28 @@
+/** @file BenchmarkRunner.java */
+
+package oaql2;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmarks jar. Accepts the usual JMH command line options and always adds the GC profiler,
+ * so that the allocation rate of each benchmark is reported next to its throughput
+ */
+public class BenchmarkRunner {
+
+	/**
+	 * Runs the benchmarks selected by the command line options
+	 * 
+	 * @param args JMH command line options, e.g. a regular expression selecting benchmarks
+	 * 
+	 */
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
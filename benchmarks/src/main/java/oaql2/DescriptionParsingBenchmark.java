@@ -0,0 +1,88 @@
+/** @file DescriptionParsingBenchmark.java */
+
+package oaql2;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the creation of metadata objects from OpenAPI descriptions of the database directory. The smallest,
+ * the median and the largest description of the zip file are measured separately, since the expansion of schemas
+ * makes the cost grow faster than the size
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DescriptionParsingBenchmark {
+
+	/** The zip file with the descriptions, can be changed with -Doaql2.descriptions=<path> */
+	static final String descriptionsPath = System.getProperty("oaql2.descriptions", "database/database-part1.zip");
+
+	/** Which description of the zip file to parse, by size */
+	@Param({"smallest", "median", "largest"})
+	String size;
+
+	/** The description to parse */
+	String desc;
+
+	/**
+	 * Reads the selected description from the zip file
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		File file = new File(descriptionsPath);
+		if(!file.isFile()) {
+			throw new Exception("Descriptions not found at " + file.getAbsolutePath() + ", run from the root of the repository or set -Doaql2.descriptions=<zip file>");
+		}
+		try(ZipFile zip = new ZipFile(file)) {
+			ArrayList<ZipEntry> entries = new ArrayList<ZipEntry>();
+			zip.stream().filter(e -> !e.isDirectory()).forEach(entries::add);
+			if(entries.size() == 0) {
+				throw new Exception("No descriptions in " + file.getAbsolutePath());
+			}
+			entries.sort(Comparator.comparingLong(ZipEntry::getSize));
+			ZipEntry entry;
+			if(size.equals("smallest")) {
+				entry = entries.get(0);
+			}else if(size.equals("median")) {
+				entry = entries.get(entries.size() / 2);
+			}else {
+				entry = entries.get(entries.size() - 1);
+			}
+			desc = new String(zip.getInputStream(entry).readAllBytes(), StandardCharsets.UTF_8);
+			System.out.println("Parsing " + entry.getName() + " (" + entry.getSize() + " bytes)");
+		}
+	}
+
+	/**
+	 * Parses the description
+	 * 
+	 * @return the metadata object, so that it is not eliminated as dead code
+	 * 
+	 */
+	@Benchmark
+	public JSONObject parse() throws Exception {
+		return new DescriptionParser().parse(desc);
+	}
+}
@@ -0,0 +1,62 @@
+/** @file ModelInitBenchmark.java */
+
+package oaql2;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the static initialization of Model, which computes the information of every table at startup. Static
+ * initializers run once per class loader, so each invocation loads Model in a new class loader. The time also includes
+ * loading the classes, which is part of the startup cost anyway
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModelInitBenchmark {
+
+	/** The entries of the class path, from which each new class loader loads Model and its dependencies */
+	URL[] classPath;
+
+	/**
+	 * Reads the class path of the benchmark
+	 */
+	@Setup
+	public void setup() throws Exception {
+		ArrayList<URL> urls = new ArrayList<URL>();
+		for(String s : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			urls.add(new File(s).toURI().toURL());
+		}
+		classPath = urls.toArray(new URL[0]);
+	}
+
+	/**
+	 * Loads and initializes Model in a new class loader
+	 * 
+	 * @return the initialized class, so that it is not eliminated as dead code
+	 * 
+	 */
+	@Benchmark
+	public Class<?> initialize() throws Exception {
+		//the parent is the platform class loader, so that Model is not found in the class loader of the benchmark
+		try(URLClassLoader loader = new URLClassLoader(classPath, ClassLoader.getPlatformClassLoader())) {
+			return Class.forName("oaql2.Model", true, loader);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+/** @file NestedObjectsBenchmark.java */
+
+package oaql2;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+
+/**
+ * Latency of queries starting from Property or Item in MongoDB, with the nested objects collected by the native expression
+ * of Model.nestedObjectsExpression or by the JavaScript $function used before it. The metadata objects of the descriptions
+ * of the database directory are inserted into a separate database, which is dropped at the end. Needs a running MongoDB
+ * with server-side JavaScript enabled, given with -Doaql2.mongodb=<URL>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class NestedObjectsBenchmark {
+
+	/** The zip file with the descriptions, can be changed with -Doaql2.descriptions=<path> */
+	static final String descriptionsPath = System.getProperty("oaql2.descriptions", "database/database-part1.zip");
+
+	/** The URL of MongoDB, can be changed with -Doaql2.mongodb=<URL> */
+	static final String mongoUrl = System.getProperty("oaql2.mongodb", "mongodb://localhost:27017");
+
+	/** The maximum number of descriptions inserted, can be changed with -Doaql2.nestedDescriptions=<number> */
+	static final int descriptionsNum = Integer.getInteger("oaql2.nestedDescriptions", 500);
+
+	/** The database the metadata objects are inserted into */
+	static final String dbName = "oaql2Benchmark";
+
+	/** JS function that collected all nested Property objects before the native expression */
+	static final String propFunc = "function rec(obj){"
+										+ "  var res=[];"
+										+ "  if(obj.hasOwnProperty(\"Property\")){"
+										+ "    for(var i=0; i<obj.Property.length; i++){"
+										+ "      res.push(obj.Property[i]);"
+										+ "      res=res.concat(rec(obj.Property[i]));"
+										+ "    }"
+										+ "  }"
+										+ "  if(obj.hasOwnProperty(\"Item\")){"
+										+ "    for(var j=0; j<obj.Item.length; j++){"
+										+ "      res=res.concat(rec(obj.Item[j]));"
+										+ "    }"
+										+ "  }"
+										+ "  return res;"
+										+ "}";
+
+	/** JS function that collected all nested Item objects before the native expression */
+	static final String itemFunc = "function rec(obj){"
+										+ "  var res=[];"
+										+ "  if(obj.hasOwnProperty(\"Item\")){"
+										+ "    for(var i=0; i<obj.Item.length; i++){"
+										+ "      res.push(obj.Item[i]);"
+										+ "      res=res.concat(rec(obj.Item[i]));"
+										+ "    }"
+										+ "  }"
+										+ "  if(obj.hasOwnProperty(\"Property\")){"
+										+ "    for(var j=0; j<obj.Property.length; j++){"
+										+ "      res=res.concat(rec(obj.Property[j]));"
+										+ "    }"
+										+ "  }"
+										+ "  return res;"
+										+ "}";
+
+	/** The table the query starts from */
+	@Param({"Property", "Item"})
+	String table;
+
+	/** How the nested objects are collected, "native" or "function" */
+	@Param({"native", "function"})
+	String engine;
+
+	/** The MongoDB client */
+	MongoClient cli;
+
+	/** The collection of the metadata objects */
+	MongoCollection<Document> coll;
+
+	/** The pipeline to execute */
+	ArrayList<Document> pipeline;
+
+	/**
+	 * Inserts the metadata objects, translates the query and checks that both ways of collecting the nested objects
+	 * return the same number of rows
+	 */
+	@Setup(Level.Trial)
+	@SuppressWarnings("deprecation")
+	public void setup() throws Exception {
+		File file = new File(descriptionsPath);
+		if(!file.isFile()) {
+			throw new Exception("Descriptions not found at " + file.getAbsolutePath() + ", run from the root of the repository or set -Doaql2.descriptions=<zip file>");
+		}
+		cli = MongoClients.create(mongoUrl);
+		coll = cli.getDatabase(dbName).getCollection(Server.collectionName);
+		coll.drop();
+		int depth = 0;
+		try(ZipFile zip = new ZipFile(file)) {
+			ArrayList<Document> docs = new ArrayList<Document>();
+			for(ZipEntry entry : zip.stream().filter(e -> !e.isDirectory()).limit(descriptionsNum).toList()) {
+				String desc = new String(zip.getInputStream(entry).readAllBytes(), StandardCharsets.UTF_8);
+				try {
+					DescriptionParser descParser = new DescriptionParser();
+					docs.add(DescriptionParser.toMetadataDocument(descParser.parse(desc), new ObjectId().toHexString()));
+					depth = Math.max(depth, descParser.getExpansionStatistics().getInt("nestingDepth"));
+				}catch(Exception | Error e) {
+					//descriptions that cannot be inserted into the service, e.g. nested deeper than maxNestingDepth, are not measured either
+				}
+			}
+			coll.insertMany(docs);
+			System.out.println("Inserted " + docs.size() + " metadata objects, Property and Item objects nested up to depth " + depth);
+		}
+
+		String alias = table.equals("Property") ? "p" : "i";
+		String query = "SELECT " + alias + ".type FROM " + table + " " + alias;
+		Parser parser = new Parser(new Lexer(new StringReader(query)));
+		ArrayList<Document> nativePipeline = parser.getPipeline(new ArrayList<String>());
+		ArrayList<Document> functionPipeline = new ArrayList<Document>();
+		for(Document stage : nativePipeline) {
+			functionPipeline.add(replaceExpression(stage));
+		}
+		if(functionPipeline.equals(nativePipeline)) {
+			throw new Exception("The pipeline of " + query + " does not collect nested objects with Model.nestedObjectsExpression");
+		}
+		long nativeRows = count(nativePipeline);
+		long functionRows = count(functionPipeline);
+		if(nativeRows != functionRows) {
+			System.out.println("The native expression returns " + nativeRows + " rows, the function returns " + functionRows);
+		}
+		pipeline = engine.equals("native") ? nativePipeline : functionPipeline;
+	}
+
+	/**
+	 * Drops the database of the metadata objects
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		cli.getDatabase(dbName).drop();
+		cli.close();
+	}
+
+	/**
+	 * Returns a stage of the pipeline with the native expression collecting the nested objects replaced by the function
+	 * 
+	 * @param stage the stage
+	 * @return the stage with the function, or the stage itself if it does not collect the nested objects
+	 * 
+	 */
+	Document replaceExpression(Document stage) {
+		Document project = stage.get("$project", Document.class);
+		if(project == null) {
+			return stage;
+		}
+		Document result = new Document();
+		for(Entry<String, Object> e : project.entrySet()) {
+			if(Model.nestedObjectsExpression(table, "$" + e.getKey()).equals(e.getValue())) {
+				result.append(e.getKey(), new Document("$function", new Document("body", table.equals("Property") ? propFunc : itemFunc)
+						.append("args", List.of("$" + e.getKey())).append("lang", "js")));
+			}else {
+				result.append(e.getKey(), e.getValue());
+			}
+		}
+		return new Document("$project", result);
+	}
+
+	/**
+	 * Executes a pipeline and counts its rows
+	 * 
+	 * @param p the pipeline
+	 * @return the number of rows
+	 * 
+	 */
+	long count(List<Document> p) {
+		long rows = 0;
+		for(@SuppressWarnings("unused") Document doc : coll.aggregate(p).allowDiskUse(true)) {
+			rows++;
+		}
+		return rows;
+	}
+
+	/**
+	 * Executes the query
+	 * 
+	 * @return the number of rows, so that the query is not eliminated as dead code
+	 * 
+	 */
+	@Benchmark
+	public long query() {
+		return count(pipeline);
+	}
+}
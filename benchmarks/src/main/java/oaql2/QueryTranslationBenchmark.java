@@ -0,0 +1,59 @@
+/** @file QueryTranslationBenchmark.java */
+
+package oaql2;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the translation of OAQL2 queries to MongoDB pipelines by the lexer and the parser, without the plan cache
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryTranslationBenchmark {
+
+	/** Queries covering single tables, joins, nested tables, semantic fields, ordering and pages */
+	static final String[] queries = {
+		"SELECT s.title, s.version FROM Service s WHERE s.title LIKE \"pet\"",
+		"SELECT r.path, r.method FROM Service s JOIN Request r ON s WHERE r.method = \"get\" AND s.openapiVersion = \"3.1.0\" ORDER BY r.path ASC",
+		"SELECT DISTINCT p.name FROM Request r JOIN Schema sc ON r JOIN Property p ON sc WHERE p.type = \"string\" AND r.method = \"post\"",
+		"SELECT r.path, p.name FROM Request r JOIN Parameter p ON r WHERE p.in = \"query\" AND (p.required = true OR p.deprecated = false)",
+		"SELECT s.title, p.name FROM Service s JOIN Request r ON s JOIN Schema sc ON r JOIN Property p ON sc WHERE p.x-refersTo = \"https://schema.org/Person\"",
+		"SELECT r.* FROM Request r WHERE r.deprecated = true LIMIT 10 OFFSET 20",
+		"SELECT s.title, r.path, re.statusCode FROM Service s JOIN Request r ON s JOIN Response re ON r WHERE re.statusCode BETWEEN 400 AND 499 ORDER BY s.title DESC LIMIT 50"
+	};
+
+	/** The index of the query to translate */
+	@Param({"0", "1", "2", "3", "4", "5", "6"})
+	int query;
+
+	/**
+	 * Translates one query
+	 * 
+	 * @return the pipeline, so that it is not eliminated as dead code
+	 * 
+	 */
+	@Benchmark
+	@SuppressWarnings("deprecation")
+	public ArrayList<Document> translate() throws Exception {
+		Lexer lexer = new Lexer(new StringReader(queries[query]));
+		Parser parser = new Parser(lexer);
+		return parser.getPipeline(new ArrayList<String>());
+	}
+}
@@ -0,0 +1,100 @@
+/** @file ResultShapingBenchmark.java */
+
+package oaql2;
+
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.bson.Document;
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput in rows of the conversion of MongoDB results to result objects and of writing them to a response,
+ * as done by Server.parseQuery for a query like "SELECT s.*, r.path, r.method FROM Service s JOIN Request r ON s"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultShapingBenchmark {
+
+	/** The number of rows of each invocation */
+	static final int rows = 1000;
+
+	/** Documents as produced by the MongoDB pipeline, copied before shaping since shaping modifies them */
+	ArrayList<Document> docs;
+
+	/** The tables given in SELECT with ".*" suffix */
+	ArrayList<String> exclusionList = new ArrayList<String>(Arrays.asList("s"));
+
+	/** The shaped results, written by the serialization benchmark */
+	JSONArray results;
+
+	/**
+	 * Creates the documents and their shaped results
+	 */
+	@Setup
+	public void setup() {
+		docs = new ArrayList<Document>();
+		results = new JSONArray();
+		for(int i = 0; i < rows; i++) {
+			Document service = new Document("title", "Service " + (i / 20))
+					.append("id", String.format("%024x", i / 20))
+					.append("description", "An example service with a description of moderate length, number " + (i / 20))
+					.append("openapiVersion", "3.1.0")
+					.append("version", "1.0." + (i % 7))
+					.append("contactEmail", "api@example.com")
+					.append("licenseName", null);
+			Document doc = new Document("s", service)
+					.append("r@path", "/resources/" + i + "/items/{itemId}")
+					.append("r@method", i % 3 == 0 ? "get" : "post");
+			docs.add(doc);
+			results.put(Server.shapeRow(new Document(doc), exclusionList));
+		}
+	}
+
+	/**
+	 * Converts the documents to result objects
+	 * 
+	 * @return the result objects, so that they are not eliminated as dead code
+	 * 
+	 */
+	@Benchmark
+	@OperationsPerInvocation(rows)
+	public JSONArray shape() {
+		JSONArray result = new JSONArray();
+		for(Document doc : docs) {
+			result.put(Server.shapeRow(new Document(doc), exclusionList));
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the result objects as a JSON array, with the same writers as the response of a query
+	 */
+	@Benchmark
+	@OperationsPerInvocation(rows)
+	public void serialize() throws Exception {
+		Writer w = new BufferedWriter(new OutputStreamWriter(OutputStream.nullOutputStream(), StandardCharsets.UTF_8));
+		results.write(w);
+		w.close();
+	}
+}
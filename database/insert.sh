@@ -2,18 +2,13 @@
 
 if [ ! $# -eq 1 ]
 then
-	echo -e "Usage:\n\ninsert.sh <hostname>\n\nSends each OpenAPI description contained in database-part1.zip and database-part2.zip to http://<hostname>/insertDescription"
+	echo -e "Usage:\n\ninsert.sh <hostname>\n\nSends the OpenAPI descriptions contained in database-part1.zip and database-part2.zip to http://<hostname>/insertDescriptions"
 	exit 1
 fi
 
-unzip -q database-part1.zip -d tmp
-
-unzip -q database-part2.zip -d tmp
-
-for entry in tmp/*
+for part in database-part1.zip database-part2.zip
 do
-  echo "Inserting: ${entry:4}"
-  curl -d "@./$entry" -H "Content-Type: application/json" -X POST http://"$1"/insertDescription
+  echo "Inserting: $part"
+  curl --data-binary "@./$part" -H "Content-Type: application/zip" -X POST http://"$1"/insertDescriptions
+  echo
 done
-
-rm -rf tmp
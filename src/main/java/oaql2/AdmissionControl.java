@@ -0,0 +1,118 @@
+/** @file AdmissionControl.java */
+
+package oaql2;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.JSONObject;
+
+/**
+ * Limits the number of requests of a route handled at the same time. Requests over the limit wait in a bounded queue
+ * in arrival order, and are rejected at once when the queue is full or after waiting too long, so that an overloaded
+ * server answers quickly instead of creating work it cannot finish
+ */
+public class AdmissionControl {
+
+	/** Result of acquire when the request may be handled */
+	public static final int ADMITTED = 0;
+
+	/** Result of acquire, and status code of the response, when the queue of the route is full */
+	public static final int QUEUE_FULL = 429;
+
+	/** Result of acquire, and status code of the response, when the request waited in the queue too long */
+	public static final int TIMED_OUT = 503;
+
+	/** The maximum number of requests handled at the same time */
+	private final int maxConcurrent;
+
+	/** The maximum number of requests waiting to be handled */
+	private final int maxQueued;
+
+	/** The maximum time in milliseconds a request waits to be handled */
+	private final long queueTimeoutMs;
+
+	/** Permits of the requests being handled, fair so that waiting requests are admitted in arrival order */
+	private final Semaphore permits;
+
+	/** Number of requests waiting to be handled */
+	private final AtomicInteger queued = new AtomicInteger();
+
+	/** Number of requests that were handled */
+	private final LongAdder admitted = new LongAdder();
+
+	/** Number of requests rejected because the queue was full */
+	private final LongAdder rejectedQueueFull = new LongAdder();
+
+	/** Number of requests rejected because they waited too long */
+	private final LongAdder rejectedTimedOut = new LongAdder();
+
+	/**
+	 * Constructor to initialize an AdmissionControl
+	 *
+	 * @param maxConcurrent the maximum number of requests handled at the same time
+	 * @param maxQueued the maximum number of requests waiting to be handled
+	 * @param queueTimeoutMs the maximum time in milliseconds a request waits to be handled
+	 *
+	 */
+	public AdmissionControl(int maxConcurrent, int maxQueued, long queueTimeoutMs) {
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueued = maxQueued;
+		this.queueTimeoutMs = queueTimeoutMs;
+		permits = new Semaphore(maxConcurrent, true);
+	}
+
+	/**
+	 * Waits until a request may be handled, release must be called after handling it if the result is ADMITTED
+	 *
+	 * @return ADMITTED, QUEUE_FULL or TIMED_OUT
+	 *
+	 */
+	public int acquire() throws InterruptedException {
+		//a timed tryAcquire respects the order of waiting requests, unlike tryAcquire without arguments
+		if(permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+			admitted.increment();
+			return ADMITTED;
+		}
+		if(queued.incrementAndGet() > maxQueued) {
+			queued.decrementAndGet();
+			rejectedQueueFull.increment();
+			return QUEUE_FULL;
+		}
+		try {
+			if(permits.tryAcquire(queueTimeoutMs, TimeUnit.MILLISECONDS)) {
+				admitted.increment();
+				return ADMITTED;
+			}
+			rejectedTimedOut.increment();
+			return TIMED_OUT;
+		}finally {
+			queued.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Marks the end of handling a request
+	 */
+	public void release() {
+		permits.release();
+	}
+
+	/**
+	 * Returns statistics about the requests of the route
+	 *
+	 * @return a JSON object with the limits and the number of active, queued, admitted and rejected requests
+	 *
+	 */
+	public JSONObject toJSON() {
+		return new JSONObject()
+				.put("maxConcurrent", maxConcurrent)
+				.put("maxQueued", maxQueued)
+				.put("active", maxConcurrent - permits.availablePermits())
+				.put("queued", queued.get())
+				.put("admitted", admitted.sum())
+				.put("rejectedQueueFull", rejectedQueueFull.sum())
+				.put("rejectedTimedOut", rejectedTimedOut.sum());
+	}
+}
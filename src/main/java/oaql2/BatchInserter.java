@@ -0,0 +1,348 @@
+/** @file BatchInserter.java */
+
+package oaql2;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Inserts many OpenAPI descriptions sent in a single request, given either as a zip file with one description
+ * per entry or as newline-delimited JSON with one description per line. Descriptions are parsed in parallel
+ * and written to the database in bulk
+ */
+public class BatchInserter {
+
+	/** Workers shared by all batch requests, so that concurrent requests cannot use more threads */
+	private static ExecutorService workers = Executors.newFixedThreadPool(Server.batchParserThreads);
+
+	/**
+	 * Helper class holding one description of the batch and the result of inserting it
+	 */
+	static class Item {
+
+		/** The name of the zip entry or the line number of the description */
+		String name;
+
+		/** The OpenAPI description */
+		String desc;
+
+		/** The id of the description, generated when parsing it unless it was given */
+		ObjectId id;
+
+		/** True if the id was given, so that a document stored with the same id comes from a previous attempt to insert the description */
+		boolean givenId;
+
+		/** True if a document of the description was found stored by a previous attempt */
+		boolean storedBefore;
+
+		/** The original description to insert */
+		RawBsonDocument original;
+
+		/** The metadata object to insert */
+		Document metadata;
+
+		/** The size of the original description in bytes */
+		long size;
+
+		/** The error that occurred for this description, null if there is none */
+		String error;
+
+		/** Statistics about the expansion of schemas in the description */
+		JSONObject expansion;
+
+		/**
+		 * Constructor to initialize an Item
+		 * 
+		 * @param name the name of the description in the batch
+		 * @param desc the OpenAPI description
+		 * 
+		 */
+		Item(String name, String desc) {
+			this.name = name;
+			this.desc = desc;
+			this.size = Metrics.utf8Length(desc);
+		}
+
+		/**
+		 * Constructor to initialize an Item whose description may be inserted again, e.g. after MongoDB failed or
+		 * the server restarted, without being stored twice
+		 * 
+		 * @param name the name of the description in the batch
+		 * @param desc the OpenAPI description
+		 * @param id the id of the original description and the metadata object
+		 * 
+		 */
+		Item(String name, String desc, ObjectId id) {
+			this(name, desc);
+			this.id = id;
+			this.givenId = true;
+		}
+
+		/**
+		 * Parses the description and creates the documents to insert
+		 */
+		void parse() {
+			try {
+				//the description is parsed once to BSON, which is stored and read by the parser
+				JSONObject obj;
+				if(!givenId) {
+					id = new ObjectId();
+				}
+				original = DescriptionBson.toOriginalDocument(desc, id);
+				DescriptionParser parser = new DescriptionParser();
+				try {
+					obj = parser.parse(DescriptionBson.toJSONObject(original));
+				}catch(Error e) {
+					throw new Exception("Error: possible cyclic references or too large description: " + e.getMessage());
+				}finally {
+					expansion = parser.getExpansionStatistics();
+				}
+				metadata = DescriptionParser.toMetadataDocument(obj, id.toHexString());
+				if(givenId) {
+					metadata.put("_id", id);
+				}
+			}catch(Exception e) {
+				error = e.getMessage() == null ? e.toString() : e.getMessage();
+			}
+			desc = null;
+		}
+
+		/**
+		 * Returns the result of inserting the description
+		 * 
+		 * @return a JSON object with the name and either the id or the error of the description
+		 * 
+		 */
+		JSONObject toJSON() {
+			JSONObject result = new JSONObject().put("name", name).putOpt("expansion", expansion);
+			if(error != null) {
+				return result.put("error", error);
+			}
+			return result.put("id", id.toHexString());
+		}
+	}
+
+	/**
+	 * Parses the descriptions of the request, inserts them into the database and returns the result of each one
+	 * 
+	 * @param cli the MongoDB client shared by the server
+	 * @param ex the HttpExchange object of the HTTP request to insert descriptions
+	 * 
+	 */
+	public void handleExchange(MongoClient cli, HttpExchange ex) throws Exception {
+		//only accept POST requests
+		if(!ex.getRequestMethod().equals("POST")){
+			throw new Exception("Only supporting POST requests");
+		}
+		long startTime = System.currentTimeMillis();
+		MongoDatabase db = cli.getDatabase(Server.dbName);
+
+		//read descriptions in chunks, so that only one chunk of parsed descriptions is held in memory
+		JSONArray results = new JSONArray();
+		int inserted = 0;
+		ArrayList<Item> chunk = new ArrayList<Item>();
+		String contentType = ex.getRequestHeaders().getFirst("Content-Type");
+		InputStream input = ex.getRequestBody();
+		if(contentType != null && contentType.startsWith("application/zip")) {
+			ZipInputStream zip = new ZipInputStream(input, StandardCharsets.UTF_8);
+			ZipEntry entry;
+			while((entry = zip.getNextEntry()) != null) {
+				if(entry.isDirectory()) {
+					continue;
+				}
+				chunk.add(new Item(entry.getName(), new String(zip.readAllBytes(), StandardCharsets.UTF_8)));
+				if(chunk.size() == Server.batchInsertChunkSize) {
+					inserted += insertChunk(chunk, db, results);
+					chunk.clear();
+				}
+			}
+			zip.close();
+		}else {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+			String line;
+			int lineNum = 0;
+			while((line = reader.readLine()) != null) {
+				lineNum++;
+				if(line.isBlank()) {
+					continue;
+				}
+				chunk.add(new Item("line " + lineNum, line));
+				if(chunk.size() == Server.batchInsertChunkSize) {
+					inserted += insertChunk(chunk, db, results);
+					chunk.clear();
+				}
+			}
+			reader.close();
+		}
+		if(chunk.size() > 0) {
+			inserted += insertChunk(chunk, db, results);
+		}
+		if(results.length() == 0) {
+			throw new Exception("No descriptions found in request body");
+		}
+
+		long time = System.currentTimeMillis() - startTime;
+		JSONObject response = new JSONObject()
+				.put("inserted", inserted)
+				.put("failed", results.length() - inserted)
+				.put("timeMs", time)
+				.put("docsPerSecond", time == 0 ? inserted * 1000.0 : inserted * 1000.0 / time)
+				.put("items", results);
+
+		//return status code 200 and the result of each description in the response body
+		ex.getResponseHeaders().put("Content-Type", Arrays.asList("application/json"));
+		ex.sendResponseHeaders(200, 0);
+		PrintWriter p = new PrintWriter(ex.getResponseBody());
+		p.write(response.toString());
+		p.close();
+		ex.close();
+		System.out.println("Inserted " + inserted + " of " + results.length() + " descriptions in " + time + "ms");
+	}
+
+	/**
+	 * Parses a chunk of descriptions in parallel and inserts them into the database
+	 * 
+	 * @param chunk the descriptions to insert
+	 * @param db the database of the server
+	 * @param results the array where the result of each description is added
+	 * @return the number of descriptions inserted
+	 * 
+	 */
+	static int insertChunk(ArrayList<Item> chunk, MongoDatabase db, JSONArray results) throws Exception {
+		MongoCollection<RawBsonDocument> originals = db.getCollection(Server.originalDescriptionsCollectionName, RawBsonDocument.class);
+		MongoCollection<Document> metadata = db.getCollection(Server.collectionName);
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+		for(Item item : chunk) {
+			futures.add(workers.submit(item::parse));
+		}
+		for(Future<?> f : futures) {
+			f.get();
+		}
+
+		//insert original descriptions first, so that a metadata object never refers to a missing description
+		ArrayList<Item> parsed = new ArrayList<Item>();
+		for(Item item : chunk) {
+			if(item.error == null) {
+				parsed.add(item);
+			}
+		}
+		ArrayList<RawBsonDocument> originalDocs = new ArrayList<RawBsonDocument>();
+		for(Item item : parsed) {
+			originalDocs.add(item.original);
+		}
+		parsed = insertMany(originals, originalDocs, parsed);
+
+		ArrayList<Document> docs = new ArrayList<Document>();
+		for(Item item : parsed) {
+			docs.add(item.metadata);
+		}
+		ArrayList<Item> stored = insertMany(metadata, docs, parsed);
+
+		//delete original descriptions whose metadata object could not be inserted
+		if(stored.size() < parsed.size()) {
+			ArrayList<ObjectId> orphans = new ArrayList<ObjectId>();
+			for(Item item : parsed) {
+				if(item.error != null) {
+					orphans.add(item.id);
+				}
+			}
+			originals.deleteMany(new Document("_id", new Document("$in", orphans)));
+		}
+
+		//insert the rows of each table of the stored metadata objects into the collection of the table, and add them to memory
+		docs = new ArrayList<Document>();
+		ArrayList<Document> docsStoredBefore = new ArrayList<Document>();
+		ArrayList<ObjectId> idsStoredBefore = new ArrayList<ObjectId>();
+		for(Item item : stored) {
+			if(item.storedBefore) {
+				docsStoredBefore.add(item.metadata);
+				idsStoredBefore.add(item.id);
+			}else {
+				docs.add(item.metadata);
+			}
+		}
+		if(Server.useTableCollections) {
+			//rows left by a previous attempt are replaced, since their ids are not known
+			if(!idsStoredBefore.isEmpty()) {
+				TableCollections.delete(db, idsStoredBefore);
+			}
+			TableCollections.insert(db, docs);
+			TableCollections.insert(db, docsStoredBefore);
+		}
+		if(Server.memoryEngine != null) {
+			Server.memoryEngine.add(docs);
+			if(!docsStoredBefore.isEmpty()) {
+				Server.memoryEngine.addMissing(docsStoredBefore);
+			}
+		}
+		if(!stored.isEmpty()) {
+			ResultCache.invalidate();
+		}
+		for(Item item : stored) {
+			Metrics.recordDescription(item.size);
+		}
+
+		for(Item item : chunk) {
+			results.put(item.toJSON());
+		}
+		return stored.size();
+	}
+
+	/**
+	 * Inserts documents with an unordered bulk write, marking the items whose document failed. A document whose given id
+	 * already exists was stored by a previous attempt, so its item is marked as stored before instead
+	 * 
+	 * @param coll the collection to insert into
+	 * @param docs the documents to insert
+	 * @param items the items of the documents, in the same order
+	 * @return the items whose document was inserted
+	 * 
+	 */
+	private static <T> ArrayList<Item> insertMany(MongoCollection<T> coll, List<T> docs, ArrayList<Item> items) {
+		if(docs.size() == 0) {
+			return items;
+		}
+		try {
+			coll.insertMany(docs, new InsertManyOptions().ordered(false));
+		}catch(MongoBulkWriteException e) {
+			for(BulkWriteError error : e.getWriteErrors()) {
+				Item item = items.get(error.getIndex());
+				if(item.givenId && error.getCode() == 11000) {
+					item.storedBefore = true;
+				}else {
+					item.error = error.getMessage();
+				}
+			}
+		}
+		ArrayList<Item> result = new ArrayList<Item>();
+		for(Item item : items) {
+			if(item.error == null) {
+				result.add(item);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,98 @@
+/** @file ConnectionPoolStatistics.java */
+
+package oaql2;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONObject;
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionClosedEvent;
+import com.mongodb.event.ConnectionCreatedEvent;
+import com.mongodb.event.ConnectionPoolClearedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+
+/**
+ * Listener that keeps statistics about the connection pool of the shared MongoDB client
+ */
+public class ConnectionPoolStatistics implements ConnectionPoolListener {
+
+	/** Number of connections currently open */
+	private final AtomicLong open = new AtomicLong();
+
+	/** Number of connections currently checked out by request handlers */
+	private final AtomicLong checkedOut = new AtomicLong();
+
+	/** Total number of connections created since startup */
+	private final AtomicLong created = new AtomicLong();
+
+	/** Total number of connections closed since startup */
+	private final AtomicLong closed = new AtomicLong();
+
+	/** Total number of successful check outs since startup */
+	private final AtomicLong checkOuts = new AtomicLong();
+
+	/** Total number of check outs that timed out while waiting for a connection */
+	private final AtomicLong waitQueueTimeouts = new AtomicLong();
+
+	/** Total number of check outs that failed for any other reason */
+	private final AtomicLong checkOutFailures = new AtomicLong();
+
+	/** Number of times the pool was cleared after a connection error */
+	private final AtomicLong cleared = new AtomicLong();
+
+	@Override
+	public void connectionCreated(ConnectionCreatedEvent event) {
+		open.incrementAndGet();
+		created.incrementAndGet();
+	}
+
+	@Override
+	public void connectionClosed(ConnectionClosedEvent event) {
+		open.decrementAndGet();
+		closed.incrementAndGet();
+	}
+
+	@Override
+	public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+		checkedOut.incrementAndGet();
+		checkOuts.incrementAndGet();
+	}
+
+	@Override
+	public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+		checkedOut.decrementAndGet();
+	}
+
+	@Override
+	public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+		if(event.getReason() == ConnectionCheckOutFailedEvent.Reason.TIMEOUT) {
+			waitQueueTimeouts.incrementAndGet();
+		}else {
+			checkOutFailures.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void connectionPoolCleared(ConnectionPoolClearedEvent event) {
+		cleared.incrementAndGet();
+	}
+
+	/**
+	 * Returns the current statistics of the pool
+	 * 
+	 * @return a JSON object with the value of each counter
+	 * 
+	 */
+	public JSONObject toJSON() {
+		return new JSONObject()
+				.put("open", open.get())
+				.put("checkedOut", checkedOut.get())
+				.put("created", created.get())
+				.put("closed", closed.get())
+				.put("checkOuts", checkOuts.get())
+				.put("waitQueueTimeouts", waitQueueTimeouts.get())
+				.put("checkOutFailures", checkOutFailures.get())
+				.put("cleared", cleared.get());
+	}
+}
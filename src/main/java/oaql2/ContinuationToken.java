@@ -0,0 +1,149 @@
+/** @file ContinuationToken.java */
+
+package oaql2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import org.bson.Document;
+
+/**
+ * Keyset pagination for queries with LIMIT. A token holds the values of the keyset fields of the last row of a page and
+ * the number of rows at the end of the returned pages that have exactly these values, so that the next page starts
+ * with a match on the keyset fields instead of skipping all previous rows
+ */
+public class ContinuationToken {
+
+	/** The fields of the result that form the keyset, in the order of the sort */
+	private final List<String> keyset;
+
+	/** Information about the LIMIT clause of the query */
+	private final Document page;
+
+	/** The keyset values of the last row seen */
+	private ArrayList<Object> lastValues;
+
+	/** The number of rows seen at the end of the page with the same keyset values as the last row */
+	private int ties = 0;
+
+	/** The number of rows seen */
+	private int rows = 0;
+
+	/** If true, the page ended before its LIMIT because the query exceeded its budget */
+	private boolean truncated = false;
+
+	/**
+	 * Constructor to initialize a ContinuationToken for a page of results
+	 * 
+	 * @param page information about the LIMIT clause of the query, as produced by the parser
+	 * 
+	 */
+	public ContinuationToken(Document page) {
+		this.page = page;
+		this.keyset = page.getList("keyset", String.class);
+	}
+
+	/**
+	 * Must be called for each row of the page, in order and before the row is modified
+	 * 
+	 * @param doc a document produced by the MongoDB pipeline
+	 * 
+	 */
+	public void add(Document doc) {
+		ArrayList<Object> values = new ArrayList<Object>();
+		for(String k : keyset) {
+			values.add(getValue(doc, k));
+		}
+		if(values.equals(lastValues)) {
+			ties++;
+		}else {
+			lastValues = values;
+			ties = 1;
+		}
+		rows++;
+	}
+
+	/**
+	 * Marks the page as ending before its LIMIT because the query exceeded its budget, so that the token of the next page
+	 * continues after the last row seen
+	 */
+	public void truncate() {
+		truncated = true;
+	}
+
+	/**
+	 * Returns the token for the next page
+	 * 
+	 * @return the token or null if this is the last page or the rows skipped by OFFSET are unknown
+	 * 
+	 */
+	public String getToken() {
+		if(rows == 0 || (rows < page.getInteger("limit") && !truncated)) {
+			return null;
+		}
+		int n = ties;
+		if(ties == rows) {
+			//the whole page has the same keyset values, so rows with these values may exist in previous pages too
+			Document after = page.get("after", Document.class);
+			if(after != null && after.getList("k", Object.class).equals(lastValues)) {
+				n += after.getInteger("n");
+			}else if(page.getInteger("offset", 0) > 0) {
+				return null;
+			}
+		}
+		return encode(lastValues, n);
+	}
+
+	/**
+	 * Returns the value of a field of a result document, which may be inside the object of a table given with ".*" suffix
+	 * 
+	 * @param doc a document produced by the MongoDB pipeline
+	 * @param key the name of the field, with "." separating nested fields
+	 * @return the value or null if it does not exist
+	 * 
+	 */
+	static Object getValue(Document doc, String key) {
+		Object result = doc;
+		for(String part : key.split("\\.")) {
+			if(!(result instanceof Document)) {
+				return null;
+			}
+			result = ((Document)result).get(part);
+		}
+		return result;
+	}
+
+	/**
+	 * Creates a token
+	 * 
+	 * @param values the keyset values of the last row returned
+	 * @param n the number of returned rows with these keyset values
+	 * @return the token as URL-safe base64 of extended JSON
+	 * 
+	 */
+	static String encode(List<Object> values, int n) {
+		String json = new Document("k", values).append("n", n).toJson();
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Reads a token given in a query with AFTER
+	 * 
+	 * @param token the token
+	 * @return an object with the keyset values "k" and the number of rows "n" to skip after matching them
+	 * 
+	 */
+	static Document decode(String token) throws Exception {
+		Document result;
+		try {
+			result = Document.parse(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+		}catch(RuntimeException e) {
+			throw new Exception("Invalid continuation token");
+		}
+		if(!(result.get("k") instanceof List) || !(result.get("n") instanceof Integer) || result.getInteger("n") < 0) {
+			throw new Exception("Invalid continuation token");
+		}
+		return result;
+	}
+}
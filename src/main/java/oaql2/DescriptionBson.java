@@ -0,0 +1,186 @@
+/** @file DescriptionBson.java */
+
+package oaql2;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonElement;
+import org.bson.BsonObjectId;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonValueCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Conversions between the JSON objects used by the description parser and BSON, so that the text of a description is
+ * parsed only once: into BSON, which is stored as the original description and read into the JSON objects given to the
+ * parser, while the metadata object is converted to a document without being serialized to text
+ */
+public class DescriptionBson {
+
+	/** Decodes BSON values of types that have no JSON counterpart */
+	private static final BsonValueCodec valueCodec = new BsonValueCodec();
+
+	/**
+	 * Parses an OpenAPI description to the document stored in the "originalDescriptions" collection
+	 *
+	 * @param desc the OpenAPI description
+	 * @param id the id of the document
+	 * @return the document with the fields of the description and the id
+	 *
+	 */
+	static RawBsonDocument toOriginalDocument(String desc, ObjectId id) {
+		RawBsonDocument parsed = RawBsonDocument.parse(desc);
+		BasicOutputBuffer buffer = new BasicOutputBuffer(parsed.getByteBuffer().remaining() + 32);
+		BsonBinaryWriter writer = new BsonBinaryWriter(buffer);
+		writer.pipe(new BsonBinaryReader(parsed.getByteBuffer().asNIO()), List.of(new BsonElement("_id", new BsonObjectId(id))));
+		writer.close();
+		return new RawBsonDocument(buffer.getInternalBuffer(), 0, buffer.getPosition());
+	}
+
+	/**
+	 * Reads a document to a JSON object, as given to DescriptionParser.parse
+	 *
+	 * @param doc the document of an original description
+	 * @return the JSON object with all fields of the document except its id
+	 *
+	 */
+	static JSONObject toJSONObject(RawBsonDocument doc) {
+		BsonBinaryReader reader = new BsonBinaryReader(doc.getByteBuffer().asNIO());
+		reader.readStartDocument();
+		JSONObject result = new JSONObject();
+		while(reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			String name = reader.readName();
+			if(name.equals("_id")) {
+				reader.skipValue();
+			}else {
+				result.put(name, readValue(reader));
+			}
+		}
+		reader.readEndDocument();
+		reader.close();
+		return result;
+	}
+
+	/**
+	 * Reads the current value of a reader as the value of a JSON object
+	 *
+	 * @param reader a reader positioned at a value
+	 * @return a JSONObject, JSONArray, String, Number, Boolean or JSONObject.NULL
+	 *
+	 */
+	private static Object readValue(BsonReader reader) {
+		switch(reader.getCurrentBsonType()) {
+			case DOCUMENT:
+				JSONObject obj = new JSONObject();
+				reader.readStartDocument();
+				while(reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+					obj.put(reader.readName(), readValue(reader));
+				}
+				reader.readEndDocument();
+				return obj;
+			case ARRAY:
+				JSONArray arr = new JSONArray();
+				reader.readStartArray();
+				while(reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+					arr.put(readValue(reader));
+				}
+				reader.readEndArray();
+				return arr;
+			case STRING:
+				return reader.readString();
+			case INT32:
+				return reader.readInt32();
+			case INT64:
+				return reader.readInt64();
+			case DOUBLE:
+				return reader.readDouble();
+			case DECIMAL128:
+				return reader.readDecimal128().bigDecimalValue();
+			case BOOLEAN:
+				return reader.readBoolean();
+			case NULL:
+				reader.readNull();
+				return JSONObject.NULL;
+			default:
+				//values written in extended JSON (e.g. {"$date": ...}) are given to the parser in relaxed extended JSON
+				BsonDocument wrapper = new BsonDocument("v", valueCodec.decode(reader, DecoderContext.builder().build()));
+				return new JSONObject(wrapper.toJson()).get("v");
+		}
+	}
+
+	/**
+	 * Converts a metadata object to a document, with the same values that parsing its JSON text would give
+	 *
+	 * @param obj the metadata object
+	 * @return the document
+	 *
+	 */
+	static Document toDocument(JSONObject obj) {
+		Document result = new Document();
+		for(String key : obj.keySet()) {
+			result.put(key, toBsonValue(obj.opt(key)));
+		}
+		return result;
+	}
+
+	/**
+	 * Converts a value of a JSON object to the value of a document
+	 *
+	 * @param value the value of the JSON object
+	 * @return the value of the document
+	 *
+	 */
+	private static Object toBsonValue(Object value) {
+		if(value instanceof JSONObject) {
+			return toDocument((JSONObject)value);
+		}else if(value instanceof JSONArray) {
+			JSONArray arr = (JSONArray)value;
+			ArrayList<Object> result = new ArrayList<Object>(arr.length());
+			for(int i = 0; i < arr.length(); i++) {
+				result.add(toBsonValue(arr.opt(i)));
+			}
+			return result;
+		}else if(value == null || value == JSONObject.NULL) {
+			return null;
+		}else if(value instanceof Number) {
+			return toBsonNumber((Number)value);
+		}else if(value instanceof String || value instanceof Boolean) {
+			return value;
+		}
+		return JSONObject.valueToString(value);
+	}
+
+	/**
+	 * Converts a number the way it would be written in JSON and parsed by MongoDB: numbers written without a
+	 * fraction or an exponent become integers, all other numbers become doubles
+	 *
+	 * @param n the number
+	 * @return an Integer, Long or Double
+	 *
+	 */
+	private static Object toBsonNumber(Number n) {
+		if(n instanceof Integer) {
+			return n;
+		}
+		String s = JSONObject.numberToString(n);
+		if(s.indexOf('.') < 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0) {
+			try {
+				long l = Long.parseLong(s);
+				return l == (int)l ? Integer.valueOf((int)l) : Long.valueOf(l);
+			}catch(NumberFormatException e) {
+				//too large for a long
+			}
+		}
+		return Double.valueOf(s);
+	}
+}
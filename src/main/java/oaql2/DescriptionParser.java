@@ -5,12 +5,16 @@ package oaql2;
 import org.json.JSONObject;
 import org.json.JSONArray;
 import com.mongodb.client.MongoClient;
-import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.sun.net.httpserver.HttpExchange;
-import java.util.Scanner;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
 
 
 /**
@@ -21,6 +25,24 @@ public class DescriptionParser{
 	/** Helper object to hold the OpenAPI description while it is parsed */
 	private JSONObject description;
 	
+	/** Objects of the description found by following each reference path, so that each path is followed only once */
+	private HashMap<String, JSONObject> resolvedRefs = new HashMap<String, JSONObject>();
+	
+	/** Parsed schemas for each reference path, null if the parsed schema cannot be reused */
+	private HashMap<String, JSONArray> parsedSchemas = new HashMap<String, JSONArray>();
+	
+	/** Number of schema objects expanded while parsing the description */
+	private long schemasExpanded;
+	
+	/** Number of schema alternatives created by combining schemas while parsing the description */
+	private long alternativesCreated;
+	
+	/** The largest number of alternatives of a single schema in the description */
+	private long maxAlternatives;
+	
+	/** The deepest nesting of Property and Item objects in a schema of the description */
+	private int nestingDepth;
+	
 	/** List of HTTP methods */
 	private static String[] httpMethods = {"get", "put", "post", "delete", "options", "head", "patch", "trace"};
 	
@@ -32,46 +54,77 @@ public class DescriptionParser{
 	/**
 	 * Parses the new description and inserts it into the database
 	 * 
-	 * @param mongoUrl the URL of the MongoDB service
+	 * @param cli the MongoDB client shared by the server
 	 * @param ex the HttpExchange object of the HTTP request to insert a description
 	 * 
 	 */
-	public void handleExchange(String mongoUrl, HttpExchange ex) throws Exception {
+	public void handleExchange(MongoClient cli, HttpExchange ex) throws Exception {
 		//only accept POST requests
 		if(!ex.getRequestMethod().equals("POST")){
 			throw new Exception("Only supporting POST requests");
 		}
 		
-		//get description as string from request body
-		Scanner s = new Scanner(ex.getRequestBody());
-		String desc = s.useDelimiter("\\Z").next();
-		s.close();
+		//get description from request body, decoded once to a string for the BSON parser
+		InputStream input = ex.getRequestBody();
+		byte[] body = input.readAllBytes();
+		input.close();
+		String desc = new String(body, StandardCharsets.UTF_8);
 		
-		//parse description to get metadata object, catch any errors
+		//parse description once to BSON, which is stored as the original description and read by the parser to get the metadata object, catch any errors
+		long startTime = System.currentTimeMillis();
+		ObjectId id = new ObjectId();
+		RawBsonDocument original = DescriptionBson.toOriginalDocument(desc, id);
 		JSONObject obj;
 		try{
-            obj = this.parse(desc);
+            obj = this.parse(DescriptionBson.toJSONObject(original));
         }
         catch(Error e){
             throw new Exception("Error: possible cyclic references or too large description: " + e.getMessage());
         }
+		System.out.println("Description parsed in " + (System.currentTimeMillis() - startTime) + "ms, schema expansion: " + getExpansionStatistics());
 		
-		//insert description into "originalDescriptions" collection of Mongo, get generated id and put it in metadata object
-		MongoClient cli = MongoClients.create(mongoUrl);
+		//insert description into "originalDescriptions" collection of Mongo with the id that is put in metadata object
 		MongoDatabase db = cli.getDatabase(Server.dbName);
-		MongoCollection<Document> coll = db.getCollection(Server.originalDescriptionsCollectionName);
-		obj.getJSONArray("Service").getJSONObject(0).put("id", coll.insertOne(Document.parse(desc)).getInsertedId().asObjectId().getValue().toString());
+		db.getCollection(Server.originalDescriptionsCollectionName, RawBsonDocument.class).insertOne(original);
 		
 		//insert metadata object into "metadataCollection" collection of Mongo
-		coll = db.getCollection(Server.collectionName);
-		coll.insertOne(Document.parse(obj.toString()));
-		cli.close();
+		MongoCollection<Document> coll = db.getCollection(Server.collectionName);
+		Document metadata = toMetadataDocument(obj, id.toHexString());
+		coll.insertOne(metadata);
+		
+		//insert the rows of each table into the collection of the table
+		if(Server.useTableCollections) {
+			TableCollections.insert(db, Arrays.asList(metadata));
+		}
+		if(Server.memoryEngine != null) {
+			Server.memoryEngine.add(Arrays.asList(metadata));
+		}
+		ResultCache.invalidate();
+		
+		Metrics.recordDescription(body.length);
 		
 		//return 204 code
 		ex.sendResponseHeaders(204, -1);
 		ex.close();
 	}
 	
+	/**
+	 * Creates the document that is stored in the metadata collection
+	 * 
+	 * @param obj the metadata object returned by parse
+	 * @param id the id of the original description in the "originalDescriptions" collection
+	 * @return the metadata document
+	 * 
+	 */
+	static Document toMetadataDocument(JSONObject obj, String id) {
+		obj.getJSONArray("Service").getJSONObject(0).put("id", id);
+		Document metadata = DescriptionBson.toDocument(obj);
+		if(Server.useSemanticAncestors) {
+			SemanticAncestors.annotate(metadata);
+		}
+		return metadata;
+	}
+	
 	/**
 	 * Copies each field from src to dest under the same key if they exist in src
 	 * 
@@ -109,7 +162,24 @@ public class DescriptionParser{
 	 * 
 	 */
 	public JSONObject parse(String desc)throws Exception{
-		description = new JSONObject(desc);
+		return parse(new JSONObject(desc));
+	}
+	
+	/**
+	 * Parses a description already read to a JSON object and returns a metadata object
+	 * 
+	 * @param desc the OpenAPI description to be parsed
+	 * @return the metadata object
+	 * 
+	 */
+	public JSONObject parse(JSONObject desc)throws Exception{
+		description = desc;
+		resolvedRefs.clear();
+		parsedSchemas.clear();
+		schemasExpanded = 0;
+		alternativesCreated = 0;
+		maxAlternatives = 0;
+		nestingDepth = 0;
 		JSONObject parsedDescription = new JSONObject();
 		
 		//copy fields from OpenAPI and Info objects
@@ -171,9 +241,47 @@ public class DescriptionParser{
 		
 		//put object in an array under Service and return
 		parsedDescription.put("Service", new JSONArray().put(service));
+		
+		//queries starting from Property or Item only find objects nested up to maxNestingDepth levels, so deeper descriptions are rejected
+		nestingDepth = nestingDepth(parsedDescription, 0);
+		if(nestingDepth > Model.maxNestingDepth) {
+			throw new Exception("Error: too large description: Property and Item objects are nested " + nestingDepth + " levels deep, the limit is " + Model.maxNestingDepth);
+		}
 		return parsedDescription;
 	}
 	
+	/**
+	 * Returns the deepest nesting of Property and Item objects inside a value of a metadata object
+	 * 
+	 * @param value the value
+	 * @param depth the number of Property and Item objects the value is nested in
+	 * @return the deepest nesting found
+	 * 
+	 */
+	static int nestingDepth(Object value, int depth) {
+		int result = depth;
+		if(value instanceof JSONObject) {
+			JSONObject obj = (JSONObject)value;
+			for(String k : obj.keySet()) {
+				if((k.equals("Property") || k.equals("Item")) && obj.get(k) instanceof JSONArray) {
+					JSONArray arr = obj.getJSONArray(k);
+					for(int i = 0; i < arr.length(); i++) {
+						result = Math.max(result, nestingDepth(arr.get(i), depth + 1));
+					}
+				}else {
+					//other objects, e.g. Schema objects, start a new nesting
+					result = Math.max(result, nestingDepth(obj.get(k), 0));
+				}
+			}
+		}else if(value instanceof JSONArray) {
+			JSONArray arr = (JSONArray)value;
+			for(int i = 0; i < arr.length(); i++) {
+				result = Math.max(result, nestingDepth(arr.get(i), depth));
+			}
+		}
+		return result;
+	}
+	
 	/**
 	 * Copies all fields whose key begins with "x-" from source to dest
 	 * 
@@ -185,8 +293,9 @@ public class DescriptionParser{
 		for(String k: source.keySet()) {
 			if(k.startsWith("x-")) {
 				//if key does not exist in dest, simply put the value
+				//arrays are copied, because they may be extended later while the source is part of the description
 				if(!dest.has(k)) {
-					dest.put(k, source.get(k));
+					dest.put(k, copyValue(source.get(k)));
 					continue;
 				}
 				
@@ -207,7 +316,7 @@ public class DescriptionParser{
 				}else if(sourceobj.getClass() == JSONArray.class) {
 					//if value in source is an array
 					//append value from dest to the array in source and copy the array into dest
-					dest.put(k, new JSONArray(((JSONArray)sourceobj).toString()).put(destobj));
+					dest.put(k, copyArray((JSONArray)sourceobj).put(destobj));
 				}else {
 					//put in dest an array containing both values
 					dest.put(k, new JSONArray().put(destobj).put(sourceobj));
@@ -347,24 +456,28 @@ public class DescriptionParser{
 	 * 
 	 */
 	private JSONObject resolveStringRef(String path)throws Exception{
-		String[] ref = path.split("/");
-		
-		//only resolve references to objects inside this description
-		if(!ref[0].equals("#")) {
-			throw new Exception("Reference outside this description: " + path);
-		}
-		
-		//follow path inside description
-		JSONObject counter = description;
-		for(int i = 1; i < ref.length; i++) {
-			counter = counter.optJSONObject(ref[i]);
-			if(counter == null) {
-				throw new Exception("Reference path error: " + path);
+		JSONObject counter = resolvedRefs.get(path);
+		if(counter == null) {
+			String[] ref = path.split("/");
+			
+			//only resolve references to objects inside this description
+			if(!ref[0].equals("#")) {
+				throw new Exception("Reference outside this description: " + path);
 			}
+			
+			//follow path inside description
+			counter = description;
+			for(int i = 1; i < ref.length; i++) {
+				counter = counter.optJSONObject(ref[i]);
+				if(counter == null) {
+					throw new Exception("Reference path error: " + path);
+				}
+			}
+			resolvedRefs.put(path, counter);
 		}
 		
-		//return copy of referenced object
-		return new JSONObject(counter.toString());
+		//return copy of referenced object, nested objects are shared because they are only read while parsing
+		return new JSONObject(counter, counter.keySet().toArray(new String[0]));
 	}
 	
 	/**
@@ -513,11 +626,10 @@ public class DescriptionParser{
 			//parse Media Type object 
 			if(r.has("content")) {
 				JSONArray content = parseContent(r.getJSONObject("content"));
-				String base = result.toString();
 
 				//create new response for each contentType
 				for(int i = 1; i < content.length(); i++) {
-					JSONObject newresponse = new JSONObject(base);
+					JSONObject newresponse = copyWithArrays(result);
 					JSONObject c = content.getJSONObject(i);
 					copyField(newresponse, c, "contentType", "Schema", "Example");
 					parseXProperties(newresponse, c);
@@ -551,7 +663,8 @@ public class DescriptionParser{
 		//parse Example object
 		if(examples != null) {
 			for(String k : examples.keySet()) {
-				result.put(new JSONObject(resolveRef(examples.getJSONObject(k)).toString()).put("name", k));
+				JSONObject ex = resolveRef(examples.getJSONObject(k));
+				result.put(new JSONObject(ex, ex.keySet().toArray(new String[0])).put("name", k));
 			}
 		}
 
@@ -568,13 +681,59 @@ public class DescriptionParser{
 	 * 
 	 */
 	private JSONArray parseSchema(JSONObject schema, JSONObject encoding, String name)throws Exception{
+		//only schemas that consist of a reference are reused, since other fields would overwrite those of the referenced schema
+		if(encoding != null || schema.length() != 1 || !schema.has("$ref")) {
+			return expandSchema(schema, encoding, name);
+		}
+		String ref = schema.getString("$ref");
+		if(!parsedSchemas.containsKey(ref)) {
+			JSONArray result = expandSchema(schema, null, null);
+			
+			//rows that already have a name cannot be reused for properties, since the name of the property would be accumulated with it
+			for(int i = 0; i < result.length(); i++) {
+				if(result.getJSONObject(i).has("name")) {
+					parsedSchemas.put(ref, null);
+					return name == null ? result : expandSchema(schema, null, name);
+				}
+			}
+			parsedSchemas.put(ref, result);
+		}
+		JSONArray cached = parsedSchemas.get(ref);
+		if(cached == null) {
+			return expandSchema(schema, null, name);
+		}
+		
+		//the result is modified by the caller, so return a copy, which counts towards the expansion like the first result
+		checkExpansion(cached.length());
+		JSONArray result = copyArray(cached);
+		if(name != null) {
+			for(int i = 0; i < result.length(); i++) {
+				result.getJSONObject(i).put("name", name);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Parses a schema, property or item without reusing previous results, as described in parseSchema
+	 * 
+	 * @param schema a JSON object from the OpenAPI description describing a schema, property or item
+	 * @param encoding an Encoding object if existing, otherwise null
+	 * @param name the name of the Property if parsing a property, otherwise null
+	 * @return a JSON array to be added to the metadata object
+	 * 
+	 */
+	private JSONArray expandSchema(JSONObject schema, JSONObject encoding, String name)throws Exception{
+		schemasExpanded++;
 		schema = resolveRef(schema);
 		JSONArray resultArray = new JSONArray();
 
 		//copy all fields to new object except those needing additional parsing (found in "schemaKeys")
-		JSONObject baseSchema = new JSONObject(schema.toString());
-		for(String s : schemaKeys) {
-			baseSchema.remove(s);
+		JSONObject baseSchema = new JSONObject();
+		for(String k : schema.keySet()) {
+			if(!Arrays.asList(schemaKeys).contains(k)) {
+				baseSchema.put(k, copyValue(schema.get(k)));
+			}
 		}
 
 		//add property name if not null
@@ -666,7 +825,9 @@ public class DescriptionParser{
 
 		//parse if-then-else
 		if(schema.has("if")) {
-			JSONArray tmpresult = new JSONArray(resultArray.toString());
+			//the alternatives of both branches are counted when they are merged
+			checkAlternatives(2L * resultArray.length());
+			JSONArray tmpresult = copyArray(resultArray);
 			accMerge(resultArray, parseSchema(schema.getJSONObject("if"), null, null));
 			if(schema.has("then")) {
 				accMerge(resultArray, parseSchema(schema.getJSONObject("then"), null, null));
@@ -770,7 +931,7 @@ public class DescriptionParser{
 				}else if(sourceobj.getClass() == JSONArray.class) {
 					JSONArray sourcearr = (JSONArray)sourceobj;
 					if(!JSONArrayContains(sourcearr,destobj)) {
-						JSONArray tmp = new JSONArray(sourcearr.toString());
+						JSONArray tmp = copyArray(sourcearr);
 						tmp.put(destobj);
 						dest.put(key, tmp);
 					}
@@ -801,6 +962,120 @@ public class DescriptionParser{
 		return false;
 	}
 	
+	/**
+	 * Copies JSON objects and arrays recursively without serializing them, other values are shared
+	 * 
+	 * @param obj the value to copy
+	 * @return the copy of the value
+	 * 
+	 */
+	private static Object copyValue(Object obj) {
+		if(obj instanceof JSONObject) {
+			return copyObject((JSONObject)obj);
+		}
+		if(obj instanceof JSONArray) {
+			return copyArray((JSONArray)obj);
+		}
+		return obj;
+	}
+	
+	/**
+	 * Copies a JSON object recursively without serializing it
+	 * 
+	 * @param obj the object to copy
+	 * @return the copy of the object
+	 * 
+	 */
+	private static JSONObject copyObject(JSONObject obj) {
+		JSONObject result = new JSONObject();
+		for(String key : obj.keySet()) {
+			result.put(key, copyValue(obj.opt(key)));
+		}
+		return result;
+	}
+	
+	/**
+	 * Copies a JSON array recursively without serializing it
+	 * 
+	 * @param arr the array to copy
+	 * @return the copy of the array
+	 * 
+	 */
+	private static JSONArray copyArray(JSONArray arr) {
+		JSONArray result = new JSONArray();
+		for(int i = 0; i < arr.length(); i++) {
+			result.put(copyValue(arr.opt(i)));
+		}
+		return result;
+	}
+	
+	/**
+	 * Copies an object and the arrays directly under it, sharing everything else with the original.
+	 * Used for variants of requests and responses, where only fields and arrays at the top level are changed after copying
+	 * 
+	 * @param obj the object to copy
+	 * @return the copy of the object
+	 * 
+	 */
+	private static JSONObject copyWithArrays(JSONObject obj) {
+		JSONObject result = new JSONObject();
+		for(String key : obj.keySet()) {
+			Object value = obj.opt(key);
+			if(value instanceof JSONArray) {
+				JSONArray arr = (JSONArray)value;
+				JSONArray newarr = new JSONArray();
+				for(int i = 0; i < arr.length(); i++) {
+					newarr.put(arr.opt(i));
+				}
+				value = newarr;
+			}
+			result.put(key, value);
+		}
+		return result;
+	}
+	
+	/**
+	 * Checks the limits on schema alternatives before they are created and updates the expansion statistics
+	 * 
+	 * @param alternatives the number of alternatives that a schema will have after combining it with another schema
+	 * 
+	 */
+	private void checkExpansion(long alternatives) throws Exception{
+		checkAlternatives(alternatives);
+		alternativesCreated += alternatives;
+		if(alternativesCreated > Server.maxSchemaExpansion) {
+			throw new Exception("Error: too large description: schemas expand to more than " + Server.maxSchemaExpansion + " alternatives in total with allOf/anyOf/oneOf/if-then-else");
+		}
+		maxAlternatives = Math.max(maxAlternatives, alternatives);
+	}
+	
+	/**
+	 * Checks the limit on the alternatives of a single schema, without counting them as created
+	 * 
+	 * @param alternatives the number of alternatives that a schema will have
+	 * 
+	 */
+	private static void checkAlternatives(long alternatives) throws Exception{
+		if(alternatives > Server.maxSchemaAlternatives) {
+			throw new Exception("Error: too large description: a schema expands to " + alternatives + " alternatives with allOf/anyOf/oneOf/if-then-else, the limit is " + Server.maxSchemaAlternatives);
+		}
+	}
+	
+	/**
+	 * Returns statistics about the expansion of schemas in the last parsed description
+	 * 
+	 * @return a JSON object with the number of expanded schemas, created alternatives, the largest number of alternatives of a
+	 * schema and the deepest nesting of Property and Item objects
+	 * 
+	 */
+	public JSONObject getExpansionStatistics() {
+		return new JSONObject()
+				.put("schemasExpanded", schemasExpanded)
+				.put("alternativesCreated", alternativesCreated)
+				.put("maxAlternatives", maxAlternatives)
+				.put("nestingDepth", nestingDepth);
+	}
+	
 	/**
 	 * Creates a copy of resultArray for each value in newproperty and
 	 * appends that value to each object in the corresponding copy of
@@ -813,11 +1088,12 @@ public class DescriptionParser{
 	 * @return the result of the described merge
 	 * 
 	 */
-	private static JSONArray merge(JSONArray resultArray, JSONArray newproperty, String key)throws Exception{
+	private JSONArray merge(JSONArray resultArray, JSONArray newproperty, String key)throws Exception{
+		checkExpansion((long)resultArray.length() * newproperty.length());
 		JSONArray[] tmparr = new JSONArray[newproperty.length()];
 		tmparr[0] = resultArray;
 		for(int i = 1; i < tmparr.length; i++) {
-			tmparr[i] = new JSONArray(resultArray.toString());
+			tmparr[i] = copyArray(resultArray);
 		}
 		for(int i = 0; i < newproperty.length(); i++) {
 			for(int j = 0; j < resultArray.length(); j++) {
@@ -839,13 +1115,14 @@ public class DescriptionParser{
 	 * @param newarr an array with the new objects
 	 * 
 	 */
-	private static void accMerge(JSONArray resultArray, JSONArray newarr) throws Exception{
-		String baseStr = resultArray.toString();
+	private void accMerge(JSONArray resultArray, JSONArray newarr) throws Exception{
+		checkExpansion((long)resultArray.length() * newarr.length());
+		JSONArray base = newarr.length() > 1 ? copyArray(resultArray) : null;
 		for(int k = 0; k < resultArray.length(); k++) {
 			accumulate(resultArray.getJSONObject(k), newarr.getJSONObject(0));
 		}
 		for(int j = 1; j < newarr.length(); j++) {
-			JSONArray tmp = new JSONArray(baseStr);
+			JSONArray tmp = j == newarr.length() - 1 ? base : copyArray(base);
 			for(int k = 0; k < tmp.length(); k++) {
 				accumulate(tmp.getJSONObject(k), newarr.getJSONObject(j));
 			}
@@ -988,13 +1265,12 @@ public class DescriptionParser{
 		}
 
 		parseXProperties(baseRequest, pathitem);
-		String baseStr = baseRequest.toString();
 		
 		for(String method : httpMethods) {
 			if(pathitem.has(method)) {
 				//create separate request for each method
 				JSONObject req = pathitem.getJSONObject(method);
-				JSONObject newreq = new JSONObject(baseStr);
+				JSONObject newreq = copyWithArrays(baseRequest);
 				if(path != null) {
 					newreq.put("path", path);
 				}
@@ -1064,9 +1340,8 @@ public class DescriptionParser{
 
 					//parse Media Type object
 					JSONArray content = parseContent(body.getJSONObject("content"));
-					String basereq = newreq.toString();
 					for(int i = 1; i < content.length(); i++) {
-						JSONObject r = new JSONObject(basereq);
+						JSONObject r = copyWithArrays(newreq);
 						JSONObject c = content.getJSONObject(i);
 						copyField(r, c, "contentType", "Schema", "Example");
 						parseXProperties(r, c);
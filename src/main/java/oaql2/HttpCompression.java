@@ -0,0 +1,123 @@
+/** @file HttpCompression.java */
+
+package oaql2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Compression of response bodies negotiated with the Accept-Encoding header of requests. Bodies are compressed while
+ * they are written, so that streamed results are never held in memory
+ */
+public class HttpCompression {
+
+	/**
+	 * Checks if the response to a request can be compressed with gzip
+	 * 
+	 * @param ex the HttpExchange object of the HTTP request
+	 * @return true if compression is enabled and the request accepts gzip with a non-zero quality
+	 * 
+	 */
+	static boolean acceptsGzip(HttpExchange ex) {
+		if(!Server.compressResponses) {
+			return false;
+		}
+		String header = ex.getRequestHeaders().getFirst("Accept-Encoding");
+		if(header == null) {
+			return false;
+		}
+		boolean result = false;
+		for(String coding : header.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim().toLowerCase();
+			boolean accepted = true;
+			for(int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if(param.startsWith("q=")) {
+					try {
+						accepted = Double.parseDouble(param.substring(2)) > 0;
+					}catch(NumberFormatException e) {
+						accepted = false;
+					}
+				}
+			}
+			//an explicit gzip entry overrides the wildcard
+			if(name.equals("gzip") || name.equals("x-gzip")) {
+				return accepted;
+			}else if(name.equals("*")) {
+				result = accepted;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Sends the headers of a successful response whose body has an unknown length
+	 * 
+	 * @param ex the HttpExchange object of the HTTP request
+	 * @param contentType the Content-Type of the body
+	 * @param gzip true if the body is compressed with gzip
+	 * 
+	 */
+	static void sendHeaders(HttpExchange ex, String contentType, boolean gzip) throws IOException {
+		ex.getResponseHeaders().put("Content-Type", Arrays.asList(contentType));
+		if(Server.compressResponses) {
+			ex.getResponseHeaders().put("Vary", Arrays.asList("Accept-Encoding"));
+		}
+		if(gzip) {
+			ex.getResponseHeaders().put("Content-Encoding", Arrays.asList("gzip"));
+		}
+		ex.sendResponseHeaders(200, 0);
+	}
+
+	/**
+	 * Returns the stream to write the body of a response to. The body of the HttpExchange is only opened when the
+	 * stream is first written to, which must happen after sendHeaders, so that the stream can be created before it is
+	 * known whether the response succeeds
+	 * 
+	 * @param ex the HttpExchange object of the HTTP request
+	 * @param gzip true if the body is compressed with gzip
+	 * @return the stream
+	 * 
+	 */
+	static OutputStream body(HttpExchange ex, boolean gzip) {
+		return new OutputStream() {
+			/** The body of the response, possibly compressed, null until it is first written to */
+			private OutputStream out;
+
+			private OutputStream open() throws IOException {
+				if(out == null) {
+					//flushing the stream also flushes the compressed data, so streamed rows reach the client while the query runs
+					out = gzip ? new GZIPOutputStream(ex.getResponseBody(), Server.compressionBufferSize, true) : ex.getResponseBody();
+				}
+				return out;
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				open().write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				open().write(b, off, len);
+			}
+
+			@Override
+			public void flush() throws IOException {
+				if(out != null) {
+					out.flush();
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				//opening the body here writes the gzip trailer even if the body is empty
+				open().close();
+			}
+		};
+	}
+}
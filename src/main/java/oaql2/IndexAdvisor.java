@@ -0,0 +1,365 @@
+/** @file IndexAdvisor.java */
+
+package oaql2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.bson.Document;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.IndexOptions;
+
+/**
+ * Records the field paths used in the first match stage of executed pipelines, which is the only stage that can use an index,
+ * together with the latency of the queries. In the background it estimates how selective each path is, suggests or creates
+ * indexes for selective paths that are not indexed and drops the indexes it created when they are no longer used
+ */
+public class IndexAdvisor {
+
+	/** Prefix of the names of the indexes created by the advisor */
+	static final String indexPrefix = "advisor_";
+
+	/** The maximum number of recent conditions kept for each path to estimate its selectivity */
+	static final int samplesNum = 5;
+
+	/** The maximum number of dropped indexes kept for the report */
+	static final int droppedNum = 50;
+
+	/**
+	 * Helper class holding what is known about one field path of a collection
+	 */
+	static class PathStats {
+
+		/** Number of queries using the path since tracking started or since its index was created or dropped */
+		long queries;
+
+		/** Total latency in milliseconds of these queries */
+		long latencyMs;
+
+		/** Recent conditions on the path, used as filters to estimate its selectivity */
+		ArrayDeque<Object> samples = new ArrayDeque<Object>();
+
+		/** The estimated fraction of documents matched by a condition on the path, or -1 if not estimated yet */
+		double selectivity = -1;
+
+		/** The name of the index created by the advisor for the path, or null */
+		String indexName;
+
+		/** The time the index of the path was created */
+		long indexCreatedAt;
+
+		/** The average latency in milliseconds of queries using the path before its index was created */
+		double latencyBeforeIndexMs;
+
+		/**
+		 * Records one query using the path
+		 * 
+		 * @param condition the condition on the path
+		 * @param time the latency of the query in milliseconds
+		 * 
+		 */
+		synchronized void add(Object condition, long time) {
+			queries++;
+			latencyMs += time;
+			samples.remove(condition);
+			samples.addFirst(condition);
+			if(samples.size() > samplesNum) {
+				samples.removeLast();
+			}
+		}
+
+		/**
+		 * Marks that an index was created for the path, so that latency from now on is compared with latency before it
+		 * 
+		 * @param name the name of the index
+		 * 
+		 */
+		synchronized void indexCreated(String name) {
+			indexName = name;
+			indexCreatedAt = System.currentTimeMillis();
+			latencyBeforeIndexMs = queries == 0 ? 0 : (double)latencyMs / queries;
+			queries = 0;
+			latencyMs = 0;
+		}
+
+		/**
+		 * Marks that the index of the path was dropped because it was not used. The statistics gathered so far are
+		 * discarded, so that the index is only created again if enough new queries use the path
+		 */
+		synchronized void indexDropped() {
+			indexName = null;
+			queries = 0;
+			latencyMs = 0;
+			samples.clear();
+			selectivity = -1;
+		}
+
+		/**
+		 * Returns information about the path
+		 * 
+		 * @param path the field path
+		 * @param indexed true if the path is the first field of some index
+		 * @return a JSON object with the statistics of the path
+		 * 
+		 */
+		synchronized JSONObject toJSON(String path, boolean indexed) {
+			JSONObject result = new JSONObject()
+					.put("path", path)
+					.put("queries", queries)
+					.put("avgLatencyMs", queries == 0 ? 0 : (double)latencyMs / queries)
+					.put("indexed", indexed);
+			if(selectivity >= 0) {
+				result.put("selectivity", selectivity);
+			}
+			if(indexName != null) {
+				result.put("advisorIndex", new JSONObject()
+						.put("name", indexName)
+						.put("createdAt", new Date(indexCreatedAt).toInstant().toString())
+						.put("avgLatencyBeforeMs", latencyBeforeIndexMs)
+						.put("avgLatencyAfterMs", queries == 0 ? 0 : (double)latencyMs / queries));
+			}
+			return result;
+		}
+	}
+
+	/** The MongoDB client shared by the server */
+	private final MongoClient mongoClient;
+
+	/** The statistics of each path, for each collection */
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, PathStats>> collections = new ConcurrentHashMap<String, ConcurrentHashMap<String, PathStats>>();
+
+	/** Paths found selective enough for an index in the last analysis, for each collection */
+	private final HashMap<String, ArrayList<String>> suggested = new HashMap<String, ArrayList<String>>();
+
+	/** Indexes that were not used since the server started, found in the last analysis, for each collection */
+	private final HashMap<String, ArrayList<String>> unused = new HashMap<String, ArrayList<String>>();
+
+	/** Indexes dropped by the advisor, most recent first */
+	private final ArrayDeque<JSONObject> dropped = new ArrayDeque<JSONObject>();
+
+	/** The time of the last analysis, 0 if none was made */
+	private long lastAnalysis = 0;
+
+	/**
+	 * Constructor to initialize an IndexAdvisor and schedule its analysis
+	 * 
+	 * @param mongoClient the MongoDB client shared by the server
+	 * 
+	 */
+	public IndexAdvisor(MongoClient mongoClient) {
+		this.mongoClient = mongoClient;
+		if(Server.indexAdvisorIntervalMs > 0) {
+			ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "index-advisor");
+				t.setDaemon(true);
+				return t;
+			});
+			scheduler.scheduleWithFixedDelay(() -> {
+				try {
+					analyze();
+				}catch(Exception e) {
+					System.out.println("Index advisor failed: " + e.getMessage());
+				}
+			}, Server.indexAdvisorIntervalMs, Server.indexAdvisorIntervalMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Records the paths used by an executed pipeline
+	 * 
+	 * @param collection the name of the collection the pipeline was executed on
+	 * @param pipeline the executed pipeline
+	 * @param time the latency of the query in milliseconds
+	 * 
+	 */
+	public void record(String collection, List<Document> pipeline, long time) {
+		if(pipeline.size() == 0 || !pipeline.get(0).containsKey("$match")) {
+			return;
+		}
+		HashMap<String, Object> paths = new HashMap<String, Object>();
+		collectPaths(pipeline.get(0).get("$match"), paths);
+		ConcurrentHashMap<String, PathStats> stats = collections.computeIfAbsent(collection, k -> new ConcurrentHashMap<String, PathStats>());
+		for(Entry<String, Object> e : paths.entrySet()) {
+			stats.computeIfAbsent(e.getKey(), k -> new PathStats()).add(e.getValue(), time);
+		}
+	}
+
+	/**
+	 * Finds the field paths of a match condition and the condition on each one
+	 * 
+	 * @param cond the match condition or a part of it
+	 * @param paths the paths found so far, with the last condition found on each one
+	 * 
+	 */
+	static void collectPaths(Object cond, HashMap<String, Object> paths) {
+		if(cond instanceof List) {
+			for(Object o : (List<?>)cond) {
+				collectPaths(o, paths);
+			}
+		}else if(cond instanceof Document) {
+			for(Entry<String, Object> e : ((Document)cond).entrySet()) {
+				if(!e.getKey().startsWith("$")) {
+					paths.put(e.getKey(), e.getValue());
+				}else if(!e.getKey().equals("$expr")) {
+					//logical operators contain more conditions, $expr cannot use indexes in general
+					collectPaths(e.getValue(), paths);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Estimates the selectivity of the recorded paths, creates indexes for selective paths and drops
+	 * unused indexes of the advisor, if automatic index management is enabled
+	 */
+	public synchronized void analyze() {
+		for(Entry<String, ConcurrentHashMap<String, PathStats>> c : collections.entrySet()) {
+			MongoCollection<Document> coll = mongoClient.getDatabase(Server.dbName).getCollection(c.getKey());
+			HashSet<String> indexed = indexedPaths(coll);
+			int advisorIndexes = 0;
+			for(Document index : coll.listIndexes()) {
+				if(index.getString("name").startsWith(indexPrefix)) {
+					advisorIndexes++;
+				}
+			}
+
+			//suggest indexes for frequent and selective paths
+			ArrayList<String> newSuggested = new ArrayList<String>();
+			long total = coll.estimatedDocumentCount();
+			for(Entry<String, PathStats> e : c.getValue().entrySet()) {
+				PathStats stats = e.getValue();
+				if(total == 0 || indexed.contains(e.getKey()) || stats.queries < Server.indexAdvisorMinQueries) {
+					continue;
+				}
+				stats.selectivity = estimateSelectivity(coll, e.getKey(), stats, total);
+				if(stats.selectivity < 0 || stats.selectivity > Server.indexAdvisorMaxSelectivity) {
+					continue;
+				}
+				newSuggested.add(e.getKey());
+				if(Server.autoManageIndexes && advisorIndexes < Server.indexAdvisorMaxIndexes) {
+					String name = indexPrefix + e.getKey();
+					coll.createIndex(new Document(e.getKey(), 1), new IndexOptions().name(name));
+					stats.indexCreated(name);
+					advisorIndexes++;
+					System.out.println("Index advisor created index " + name + " on " + c.getKey() + ", selectivity " + stats.selectivity);
+				}
+			}
+			suggested.put(c.getKey(), newSuggested);
+
+			//find indexes without any use for long enough, only the ones created by the advisor are dropped
+			ArrayList<String> newUnused = new ArrayList<String>();
+			for(Document s : coll.aggregate(List.of(new Document("$indexStats", new Document())))) {
+				String name = s.getString("name");
+				Document accesses = s.get("accesses", Document.class);
+				if(name.equals("_id_") || ((Number)accesses.get("ops")).longValue() > 0) {
+					continue;
+				}
+				if(System.currentTimeMillis() - accesses.getDate("since").getTime() < Server.indexAdvisorUnusedMs) {
+					continue;
+				}
+				if(Server.autoManageIndexes && name.startsWith(indexPrefix)) {
+					coll.dropIndex(name);
+					dropped.addFirst(new JSONObject().put("collection", c.getKey()).put("name", name).put("droppedAt", new Date().toInstant().toString()));
+					if(dropped.size() > droppedNum) {
+						dropped.removeLast();
+					}
+					PathStats stats = c.getValue().get(name.substring(indexPrefix.length()));
+					if(stats != null) {
+						stats.indexDropped();
+					}
+					System.out.println("Index advisor dropped unused index " + name + " on " + c.getKey());
+				}else {
+					newUnused.add(name);
+				}
+			}
+			unused.put(c.getKey(), newUnused);
+		}
+		lastAnalysis = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the paths that are the first field of some index of a collection
+	 * 
+	 * @param coll the collection
+	 * @return the set of paths
+	 * 
+	 */
+	private static HashSet<String> indexedPaths(MongoCollection<Document> coll) {
+		HashSet<String> result = new HashSet<String>();
+		for(Document index : coll.listIndexes()) {
+			result.add(index.get("key", Document.class).keySet().iterator().next());
+		}
+		return result;
+	}
+
+	/**
+	 * Estimates the fraction of documents matched by a condition on a path, as the average over the recent conditions on it
+	 * 
+	 * @param coll the collection
+	 * @param path the field path
+	 * @param stats the statistics of the path
+	 * @param total the number of documents in the collection
+	 * @return the estimated selectivity or -1 if it could not be estimated
+	 * 
+	 */
+	private static double estimateSelectivity(MongoCollection<Document> coll, String path, PathStats stats, long total) {
+		ArrayList<Object> samples;
+		synchronized(stats) {
+			samples = new ArrayList<Object>(stats.samples);
+		}
+		double sum = 0;
+		int n = 0;
+		for(Object s : samples) {
+			try {
+				long count = coll.countDocuments(new Document(path, s), new CountOptions().maxTime(Server.indexAdvisorMaxCountTimeMs, TimeUnit.MILLISECONDS));
+				sum += (double)count / total;
+				n++;
+			}catch(Exception e) {
+				//counting took too long or the condition cannot be used alone, try the other samples
+			}
+		}
+		return n == 0 ? -1 : Math.min(1, sum / n);
+	}
+
+	/**
+	 * Returns a report of the paths used by queries and the indexes suggested, created or dropped
+	 * 
+	 * @return a JSON object with the report
+	 * 
+	 */
+	public synchronized JSONObject toJSON() {
+		JSONObject result = new JSONObject()
+				.put("autoManageIndexes", Server.autoManageIndexes)
+				.put("lastAnalysis", lastAnalysis == 0 ? JSONObject.NULL : new Date(lastAnalysis).toInstant().toString());
+		JSONObject colls = new JSONObject();
+		for(Entry<String, ConcurrentHashMap<String, PathStats>> c : collections.entrySet()) {
+			HashSet<String> indexed;
+			try {
+				indexed = indexedPaths(mongoClient.getDatabase(Server.dbName).getCollection(c.getKey()));
+			}catch(Exception e) {
+				indexed = new HashSet<String>();
+			}
+			JSONArray paths = new JSONArray();
+			for(Entry<String, PathStats> e : c.getValue().entrySet()) {
+				paths.put(e.getValue().toJSON(e.getKey(), indexed.contains(e.getKey())));
+			}
+			colls.put(c.getKey(), new JSONObject()
+					.put("paths", paths)
+					.put("suggestedIndexes", new JSONArray(suggested.getOrDefault(c.getKey(), new ArrayList<String>())))
+					.put("unusedIndexes", new JSONArray(unused.getOrDefault(c.getKey(), new ArrayList<String>()))));
+		}
+		return result.put("collections", colls).put("droppedIndexes", new JSONArray(dropped));
+	}
+}
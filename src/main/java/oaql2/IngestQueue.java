@@ -0,0 +1,391 @@
+/** @file IngestQueue.java */
+
+package oaql2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bson.types.ObjectId;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import com.mongodb.client.MongoClient;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Queue of descriptions accepted for insertion but not inserted yet. Each accepted description is written to a file in
+ * the queue directory before it is acknowledged, so that it is inserted even if the server restarts. A single thread takes
+ * the queued descriptions in chunks, parses them in parallel and writes them in bulk like a batch request, and the status
+ * of each job can be retrieved until it is among the oldest jobsKept jobs
+ */
+public class IngestQueue {
+
+	/** Status of a job waiting to be inserted */
+	static final String QUEUED = "queued";
+
+	/** Status of a job being parsed and inserted */
+	static final String RUNNING = "running";
+
+	/** Status of a job whose description was inserted */
+	static final String DONE = "done";
+
+	/** Status of a job whose description could not be inserted */
+	static final String FAILED = "failed";
+
+	/** The MongoDB client shared by the server */
+	private final MongoClient cli;
+
+	/** The directory holding the file of each queued description */
+	private final File dir;
+
+	/** The jobs waiting to be inserted */
+	private final LinkedBlockingQueue<Job> pending;
+
+	/** The number of jobs waiting to be inserted, including the jobs of requests still writing their file */
+	private final AtomicInteger queued = new AtomicInteger();
+
+	/** All recent jobs by id, in order of acceptance */
+	private final LinkedHashMap<String, Job> jobs;
+
+	/**
+	 * Helper class holding one accepted description and the result of inserting it
+	 */
+	static class Job {
+
+		/** The id of the job */
+		final String id;
+
+		/** The file holding the description until it is inserted */
+		final File file;
+
+		/** The status of the job */
+		volatile String status = QUEUED;
+
+		/** The time in milliseconds when the description was accepted */
+		final long accepted;
+
+		/** The time in milliseconds when inserting the description started, 0 if it has not started */
+		volatile long started;
+
+		/** The time in milliseconds when inserting the description ended, 0 if it has not ended */
+		volatile long finished;
+
+		/** The number of times inserting the description was tried */
+		volatile int attempts;
+
+		/** The id of the inserted description, or null */
+		volatile String descriptionId;
+
+		/** The error that occurred for the description, or null */
+		volatile String error;
+
+		/** Statistics about the expansion of schemas in the description, or null */
+		volatile JSONObject expansion;
+
+		/**
+		 * Constructor to initialize a Job
+		 * 
+		 * @param id the id of the job
+		 * @param file the file holding the description
+		 * @param accepted the time in milliseconds when the description was accepted
+		 * 
+		 */
+		Job(String id, File file, long accepted) {
+			this.id = id;
+			this.file = file;
+			this.accepted = accepted;
+		}
+
+		/**
+		 * Returns the status of the job
+		 * 
+		 * @return a JSON object with the status, the timings and either the id of the description or the error
+		 * 
+		 */
+		JSONObject toJSON() {
+			JSONObject result = new JSONObject()
+					.put("id", id)
+					.put("status", status)
+					.put("accepted", accepted)
+					.put("attempts", attempts);
+			if(started > 0) {
+				result.put("started", started).put("queueMs", started - accepted);
+			}
+			if(finished > 0) {
+				result.put("finished", finished).put("processingMs", finished - started);
+			}
+			return result.putOpt("descriptionId", descriptionId).putOpt("error", error).putOpt("expansion", expansion);
+		}
+	}
+
+	/**
+	 * Constructor that queues the descriptions left in the queue directory by a previous run and starts inserting them
+	 * 
+	 * @param cli the MongoDB client shared by the server
+	 * @param dir the directory holding the file of each queued description
+	 * 
+	 */
+	public IngestQueue(MongoClient cli, File dir) throws IOException {
+		this.cli = cli;
+		this.dir = dir;
+		pending = new LinkedBlockingQueue<Job>();
+		jobs = new LinkedHashMap<String, Job>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Job> eldest) {
+				return size() > Server.ingestJobsKept && !eldest.getValue().status.equals(QUEUED) && !eldest.getValue().status.equals(RUNNING);
+			}
+		};
+		dir.mkdirs();
+		if(!dir.isDirectory()) {
+			throw new IOException("Cannot create ingestion queue directory " + dir);
+		}
+
+		//temporary files of descriptions that were never acknowledged are removed
+		for(File f : dir.listFiles((d, name) -> name.endsWith(".tmp"))) {
+			f.delete();
+		}
+
+		//job ids are ObjectIds, so sorting the files by name queues them in order of acceptance
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".json") && ObjectId.isValid(name.substring(0, name.length() - 5)));
+		Arrays.sort(files);
+		for(File f : files) {
+			String id = f.getName().substring(0, f.getName().length() - 5);
+			Job job = new Job(id, f, new ObjectId(id).getDate().getTime());
+			jobs.put(id, job);
+			pending.add(job);
+			queued.incrementAndGet();
+		}
+		if(files.length > 0) {
+			System.out.println("Resuming " + files.length + " queued descriptions");
+		}
+
+		Thread writer = new Thread(this::run, "ingest-queue");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Accepts a description for insertion, after checking that it is a JSON object, and returns the id of its job
+	 * 
+	 * @param ex the HttpExchange object of the HTTP request to insert a description
+	 * 
+	 */
+	public void handleExchange(HttpExchange ex) throws Exception {
+		//only accept POST requests
+		if(!ex.getRequestMethod().equals("POST")){
+			throw new Exception("Only supporting POST requests");
+		}
+		String desc = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+		ex.getRequestBody().close();
+		new JSONObject(desc);
+
+		//a place in the queue is reserved before the file is written, so that concurrent requests cannot exceed its capacity
+		if(queued.incrementAndGet() > Server.ingestQueueCapacity) {
+			queued.decrementAndGet();
+			Server.rejectRequest(ex, 503);
+			return;
+		}
+
+		//the description is written to a temporary file first, so that a partially written file is never queued, and both
+		//the file and its name are on disk before the description is acknowledged
+		String id = new ObjectId().toHexString();
+		File file = new File(dir, id + ".json");
+		File tmp = new File(dir, id + ".tmp");
+		try {
+			try(FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.wrap(desc.getBytes(StandardCharsets.UTF_8));
+				while(buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(true);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			forceDirectory();
+		}catch(IOException e) {
+			queued.decrementAndGet();
+			tmp.delete();
+			throw e;
+		}
+		Job job = new Job(id, file, System.currentTimeMillis());
+		synchronized(jobs) {
+			jobs.put(id, job);
+		}
+		pending.add(job);
+
+		//return status code 202 and the job in the response body
+		ex.getResponseHeaders().put("Location", Arrays.asList(Server.jobsPath + id));
+		ex.getResponseHeaders().put("Content-Type", Arrays.asList("application/json"));
+		ex.sendResponseHeaders(202, 0);
+		PrintWriter p = new PrintWriter(ex.getResponseBody());
+		p.write(job.toJSON().toString());
+		p.close();
+		ex.close();
+	}
+
+	/**
+	 * Writes the entries of the queue directory to disk, so that a moved file is found after a crash
+	 */
+	private void forceDirectory() throws IOException {
+		try(FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		}catch(AccessDeniedException e) {
+			//some platforms (e.g. Windows) cannot open directories, where the move is already durable
+		}
+	}
+
+	/**
+	 * Returns the status of a job
+	 * 
+	 * @param ex the HttpExchange object of the HTTP request to get the status of a job
+	 * 
+	 */
+	public void getJob(HttpExchange ex) throws Exception {
+		//only accept GET requests
+		if(!ex.getRequestMethod().equals("GET")){
+			throw new Exception("Only supporting GET requests");
+		}
+		String id = ex.getRequestURI().getPath().substring(Server.jobsPath.length());
+		Job job;
+		synchronized(jobs) {
+			job = jobs.get(id);
+		}
+		if(job == null) {
+			//return status code 404 because no job was found with this id
+			ex.sendResponseHeaders(404, -1);
+		}else {
+			//return status code 200 and the status of the job in the response body
+			ex.getResponseHeaders().put("Content-Type", Arrays.asList("application/json"));
+			ex.sendResponseHeaders(200, 0);
+			PrintWriter p = new PrintWriter(ex.getResponseBody());
+			p.write(job.toJSON().toString());
+			p.close();
+		}
+		ex.close();
+	}
+
+	/**
+	 * Inserts queued descriptions in chunks until the server stops. A chunk that fails is inserted again after a delay,
+	 * and a job fails after ingestMaxAttempts attempts
+	 */
+	private void run() {
+		while(true) {
+			ArrayList<Job> chunk = new ArrayList<Job>();
+			try {
+				chunk.add(pending.take());
+				pending.drainTo(chunk, Server.batchInsertChunkSize - 1);
+				queued.addAndGet(-chunk.size());
+				insert(chunk);
+			}catch(InterruptedException e) {
+				return;
+			}catch(Exception e) {
+				//MongoDB is probably unavailable, so the chunk is queued again after a delay, its files were kept
+				System.out.println("Could not insert queued descriptions, retrying: " + e.getMessage());
+				chunk.removeIf(job -> !job.status.equals(RUNNING));
+				long endTime = System.currentTimeMillis();
+				for(Job job : chunk) {
+					if(job.attempts >= Server.ingestMaxAttempts) {
+						job.error = "Could not insert description after " + job.attempts + " attempts: " + e.getMessage();
+						job.finished = endTime;
+						job.status = FAILED;
+						job.file.delete();
+					}else {
+						job.status = QUEUED;
+					}
+				}
+				chunk.removeIf(job -> !job.status.equals(QUEUED));
+				try {
+					Thread.sleep(Server.ingestRetryDelayMs);
+					//jobs that were already accepted are queued again even if the queue is full meanwhile
+					for(Job job : chunk) {
+						queued.incrementAndGet();
+						pending.put(job);
+					}
+				}catch(InterruptedException exc) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parses and inserts a chunk of queued descriptions, then deletes their files
+	 * 
+	 * @param chunk the jobs to insert
+	 * 
+	 */
+	private void insert(ArrayList<Job> chunk) throws Exception {
+		long startTime = System.currentTimeMillis();
+		ArrayList<Job> read = new ArrayList<Job>();
+		ArrayList<BatchInserter.Item> items = new ArrayList<BatchInserter.Item>();
+		for(Job job : chunk) {
+			job.status = RUNNING;
+			job.started = startTime;
+			job.attempts++;
+			try {
+				//the id of the job is the id of the description, so a description stored by a previous attempt is not stored again
+				items.add(new BatchInserter.Item(job.id, Files.readString(job.file.toPath(), StandardCharsets.UTF_8), new ObjectId(job.id)));
+				read.add(job);
+			}catch(IOException e) {
+				job.error = "Could not read queued description: " + e.getMessage();
+				job.finished = startTime;
+				job.status = FAILED;
+			}
+		}
+		int inserted = BatchInserter.insertChunk(items, cli.getDatabase(Server.dbName), new JSONArray());
+		long endTime = System.currentTimeMillis();
+		for(int i = 0; i < read.size(); i++) {
+			Job job = read.get(i);
+			BatchInserter.Item item = items.get(i);
+			job.expansion = item.expansion;
+			if(item.error == null) {
+				job.descriptionId = item.id.toHexString();
+			}else {
+				job.error = item.error;
+			}
+			job.finished = endTime;
+			job.status = item.error == null ? DONE : FAILED;
+			job.file.delete();
+		}
+		System.out.println("Inserted " + inserted + " of " + chunk.size() + " queued descriptions in " + (endTime - startTime) + "ms");
+	}
+
+	/**
+	 * Returns statistics about the queue
+	 * 
+	 * @return a JSON object with the number of jobs in each status
+	 * 
+	 */
+	public JSONObject toJSON() {
+		int queued = 0, running = 0, done = 0, failed = 0;
+		synchronized(jobs) {
+			for(Job job : jobs.values()) {
+				switch(job.status) {
+					case QUEUED: queued++; break;
+					case RUNNING: running++; break;
+					case DONE: done++; break;
+					default: failed++;
+				}
+			}
+		}
+		return new JSONObject()
+				.put("queued", queued)
+				.put("running", running)
+				.put("done", done)
+				.put("failed", failed)
+				.put("capacity", Server.ingestQueueCapacity);
+	}
+}
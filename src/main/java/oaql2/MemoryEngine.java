@@ -0,0 +1,1000 @@
+/** @file MemoryEngine.java */
+
+package oaql2;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.json.JSONObject;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+
+/**
+ * Optional query engine that keeps all metadata objects in memory and executes the pipelines produced by the parser itself,
+ * instead of sending them to MongoDB, which remains the durable store. The stages that work on one row at a time are applied
+ * to each metadata object depth-first, so that the unwinds of the joined tables form nested loops over the table hierarchy
+ * without materializing intermediate rows, and metadata objects are processed in parallel. The stages that need all rows
+ * (group, sort, skip and limit) are applied afterwards
+ */
+public class MemoryEngine {
+
+	/** Stages that are applied to each row independently of the other rows */
+	private static final Set<String> rowStages = Set.of("$match", "$project", "$addFields", "$unwind", "$replaceRoot");
+
+	/** Stages that are applied to all rows together */
+	private static final Set<String> finalStages = Set.of("$group", "$sort", "$skip", "$limit");
+
+	/** Used to convert inserted metadata objects to the types they have when read from MongoDB */
+	private static final DocumentCodec codec = new DocumentCodec();
+
+	/** The metadata objects, replaced as a whole when objects are added so that a query never sees a partial update */
+	private volatile List<Document> documents = Collections.emptyList();
+
+	/** The threads that execute the stages of each row */
+	private final ExecutorService executor;
+
+	/** The number of threads */
+	private final int threads;
+
+	/**
+	 * Holds a project stage converted to a tree of fields
+	 */
+	private static class Projection {
+
+		/** True if the stage removes the fields of the tree, false if it keeps only them and computes new fields */
+		boolean exclusion;
+
+		/** The fields of the stage, with TRUE for kept fields, FALSE for removed fields, a Document for nested fields and an Expression for computed fields */
+		Document tree = new Document();
+	}
+
+	/**
+	 * Holds the limits of the execution of a pipeline, checked while rows are produced so that a query stops as it would in MongoDB
+	 */
+	private static class Limits {
+
+		/** The time in nanoseconds (System.nanoTime) when the query must stop, or Long.MAX_VALUE */
+		final long deadline;
+
+		/** The maximum time in milliseconds of the query, for the error message */
+		final long maxTimeMs;
+
+		/** The number of rows after which each chunk of metadata objects stops producing rows, since later ones would be dropped by skip and limit stages */
+		final long maxRows;
+
+		/**
+		 * Constructor to initialize a Limits
+		 * 
+		 * @param maxTimeMs the maximum time in milliseconds of the query, 0 for no limit
+		 * @param maxRows the number of rows after which each chunk stops producing rows
+		 * 
+		 */
+		Limits(long maxTimeMs, long maxRows) {
+			this(maxTimeMs, maxTimeMs > 0 ? System.nanoTime() + maxTimeMs * 1000000 : Long.MAX_VALUE, maxRows);
+		}
+
+		/**
+		 * Constructor to initialize a Limits with a given deadline
+		 * 
+		 * @param maxTimeMs the maximum time in milliseconds of the query
+		 * @param deadline the time in nanoseconds when the query must stop
+		 * @param maxRows the number of rows after which each chunk stops producing rows
+		 * 
+		 */
+		private Limits(long maxTimeMs, long deadline, long maxRows) {
+			this.maxTimeMs = maxTimeMs;
+			this.deadline = deadline;
+			this.maxRows = maxRows;
+		}
+
+		/**
+		 * Stops the query if its time limit has passed
+		 */
+		void checkTime() {
+			if(maxTimeMs > 0 && System.nanoTime() - deadline > 0) {
+				throw new TimeLimitException(maxTimeMs);
+			}
+		}
+	}
+
+	/**
+	 * Thrown when a query executed in memory exceeds its time limit, unchecked so that it can be thrown while results are read
+	 */
+	public static class TimeLimitException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Constructor to initialize a TimeLimitException
+		 * 
+		 * @param maxTimeMs the time limit in milliseconds
+		 * 
+		 */
+		TimeLimitException(long maxTimeMs) {
+			super("Query exceeded the time limit of " + maxTimeMs + "ms");
+		}
+	}
+
+	/**
+	 * The results of a pipeline. The metadata objects are split to chunks whose rows are produced in parallel, and only
+	 * a window of chunks ahead of the rows being read is submitted, so that the rows held in memory are bounded and the
+	 * first rows can be read before the last chunks are processed
+	 */
+	public class Results implements Iterator<Document>, Closeable {
+
+		/** The metadata objects the pipeline is executed on */
+		private final List<Document> docs;
+
+		/** The pipeline */
+		private final List<Document> pipeline;
+
+		/** The arguments of the stages */
+		private final Object[] prepared;
+
+		/** The index after the last row stage applied to each metadata object */
+		private final int end;
+
+		/** The limits of the execution */
+		private final Limits limits;
+
+		/** The number of chunks */
+		private final int chunks;
+
+		/** The maximum number of chunks submitted but not read yet */
+		private final int window;
+
+		/** The chunks submitted but not read yet, in order */
+		private final ArrayDeque<Future<ArrayList<Document>>> submitted = new ArrayDeque<Future<ArrayList<Document>>>();
+
+		/** The index of the next chunk to submit */
+		private int nextChunk = 0;
+
+		/** The rows of the chunk being read, null before the first chunk */
+		private Iterator<Document> current;
+
+		/** The number of rows still to be skipped */
+		private long toSkip;
+
+		/** The number of rows still to be returned */
+		private long remaining;
+
+		/**
+		 * Constructor to initialize Results that produce the rows of the row stages
+		 * 
+		 * @param docs the metadata objects
+		 * @param pipeline the pipeline
+		 * @param prepared the arguments of the stages
+		 * @param end the index after the last row stage
+		 * @param limits the limits of the execution
+		 * @param window the maximum number of chunks submitted ahead
+		 * @param offset the number of rows to skip
+		 * @param limit the maximum number of rows to return
+		 * 
+		 */
+		private Results(List<Document> docs, List<Document> pipeline, Object[] prepared, int end, Limits limits, int window, long offset, long limit) {
+			this.docs = docs;
+			this.pipeline = pipeline;
+			this.prepared = prepared;
+			this.end = end;
+			this.limits = limits;
+			this.chunks = Math.min(docs.size(), threads * 16);
+			this.window = window;
+			this.toSkip = offset;
+			this.remaining = limit;
+		}
+
+		/**
+		 * Constructor to initialize Results of rows that were already produced
+		 * 
+		 * @param rows the rows
+		 * 
+		 */
+		private Results(ArrayList<Document> rows) {
+			this(Collections.emptyList(), null, null, 0, null, 0, 0, Long.MAX_VALUE);
+			current = rows.iterator();
+		}
+
+		/**
+		 * Submits chunks until the window is full or all chunks are submitted
+		 */
+		private void submit() {
+			while(nextChunk < chunks && submitted.size() < window) {
+				int from = (int)((long)docs.size() * nextChunk / chunks);
+				int to = (int)((long)docs.size() * (nextChunk + 1) / chunks);
+				submitted.add(executor.submit(() -> {
+					ArrayList<Document> out = new ArrayList<Document>();
+					for(int i = from; i < to && out.size() < limits.maxRows; i++) {
+						limits.checkTime();
+						applyRowStages(docs.get(i), pipeline, prepared, 0, end, out, limits);
+					}
+					return out;
+				}));
+				nextChunk++;
+			}
+		}
+
+		/**
+		 * Waits for the rows of the next chunk
+		 * 
+		 * @return the rows, or null if all chunks were read
+		 * 
+		 */
+		private ArrayList<Document> readChunk() throws Exception {
+			submit();
+			Future<ArrayList<Document>> f = submitted.poll();
+			if(f == null) {
+				return null;
+			}
+			try {
+				ArrayList<Document> rows = f.get();
+				submit();
+				return rows;
+			}catch(ExecutionException e) {
+				close();
+				if(e.getCause() instanceof Exception) {
+					throw (Exception)e.getCause();
+				}
+				throw new Exception(e.getCause());
+			}
+		}
+
+		/**
+		 * Reads all rows
+		 * 
+		 * @return the rows of all chunks, in order
+		 * 
+		 */
+		private ArrayList<Document> toList() throws Exception {
+			ArrayList<Document> result = new ArrayList<Document>();
+			ArrayList<Document> rows;
+			while((rows = readChunk()) != null) {
+				result.addAll(rows);
+			}
+			return result;
+		}
+
+		@Override
+		public boolean hasNext() {
+			try {
+				while(remaining > 0 && (current == null || !current.hasNext())) {
+					ArrayList<Document> rows = readChunk();
+					if(rows == null) {
+						return false;
+					}
+					if(toSkip >= rows.size()) {
+						toSkip -= rows.size();
+						continue;
+					}
+					current = rows.subList((int)toSkip, rows.size()).iterator();
+					toSkip = 0;
+				}
+			}catch(RuntimeException e) {
+				throw e;
+			}catch(Exception e) {
+				throw new IllegalStateException(e.getMessage(), e);
+			}
+			if(remaining <= 0) {
+				close();
+				return false;
+			}
+			return current != null && current.hasNext();
+		}
+
+		@Override
+		public Document next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			remaining--;
+			return current.next();
+		}
+
+		/**
+		 * Stops processing the chunks that were submitted but not read
+		 */
+		@Override
+		public void close() {
+			for(Future<ArrayList<Document>> f : submitted) {
+				f.cancel(true);
+			}
+			submitted.clear();
+			nextChunk = chunks;
+		}
+	}
+
+	/**
+	 * Holds an expression computing a field of a project stage
+	 */
+	private static class Expression {
+
+		/** The expression */
+		Object expr;
+
+		/**
+		 * Constructor to initialize an Expression
+		 * 
+		 * @param expr the expression
+		 * 
+		 */
+		Expression(Object expr) {
+			this.expr = expr;
+		}
+	}
+
+	/**
+	 * Constructor to initialize a MemoryEngine without metadata objects
+	 * 
+	 * @param threads the number of threads that execute queries
+	 * 
+	 */
+	public MemoryEngine(int threads) {
+		this.threads = threads;
+		executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "memory-engine");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Replaces the metadata objects in memory with the ones of a collection
+	 * 
+	 * @param coll the metadata collection
+	 * 
+	 */
+	public synchronized void load(MongoCollection<Document> coll) {
+		long startTime = System.currentTimeMillis();
+		ArrayList<Document> result = new ArrayList<Document>();
+		MongoCursor<Document> cursor = coll.find().batchSize(Server.queryBatchSize).iterator();
+		try {
+			while(cursor.hasNext()) {
+				result.add((Document)compact(cursor.next()));
+			}
+		}finally {
+			cursor.close();
+		}
+		result.trimToSize();
+		documents = result;
+		System.out.println("Loaded " + result.size() + " metadata objects in memory in " + (System.currentTimeMillis() - startTime) + "ms");
+	}
+
+	/**
+	 * Adds metadata objects that were inserted into the metadata collection
+	 * 
+	 * @param metadata the inserted metadata objects, including their _id
+	 * 
+	 */
+	public void add(List<Document> metadata) {
+		ArrayList<Document> added = new ArrayList<Document>();
+		for(Document doc : metadata) {
+			//encoding and decoding gives the same types as reading the object from MongoDB, so both engines return the same values
+			added.add((Document)compact(new RawBsonDocument(doc, codec).decode(codec)));
+		}
+		synchronized(this) {
+			ArrayList<Document> result = new ArrayList<Document>(documents.size() + added.size());
+			result.addAll(documents);
+			result.addAll(added);
+			documents = result;
+		}
+	}
+
+	/**
+	 * Adds metadata objects that may already be in memory, because they were stored by an earlier attempt to insert
+	 * them, possibly before the server restarted and loaded them
+	 * 
+	 * @param metadata the inserted metadata objects, including their _id
+	 * 
+	 */
+	public void addMissing(List<Document> metadata) {
+		HashSet<Object> ids = new HashSet<Object>();
+		for(Document doc : metadata) {
+			ids.add(doc.get("_id"));
+		}
+		for(Document doc : documents) {
+			ids.remove(doc.get("_id"));
+		}
+		ArrayList<Document> missing = new ArrayList<Document>();
+		for(Document doc : metadata) {
+			if(ids.contains(doc.get("_id"))) {
+				missing.add(doc);
+			}
+		}
+		add(missing);
+	}
+
+	/**
+	 * Returns the number of metadata objects in memory
+	 * 
+	 * @return the number of metadata objects
+	 * 
+	 */
+	public int size() {
+		return documents.size();
+	}
+
+	/**
+	 * Returns statistics about the engine
+	 * 
+	 * @return an object with the number of metadata objects and threads
+	 * 
+	 */
+	public JSONObject toJSON() {
+		return new JSONObject().put("documents", size()).put("threads", threads);
+	}
+
+	/**
+	 * Checks if a query can be executed in memory
+	 * 
+	 * @param plan the plan of the query
+	 * @return true if the plan runs on the metadata collection and uses only supported stages, operators and expressions,
+	 *         otherwise it is executed in MongoDB, which also reports the errors of invalid pipelines
+	 * 
+	 */
+	public static boolean supports(QueryPlan plan) {
+		if(!plan.collection.equals(Server.collectionName)) {
+			return false;
+		}
+		for(Document stage : plan.pipeline) {
+			String op = stage.keySet().iterator().next();
+			Object arg = stage.get(op);
+			if(!rowStages.contains(op) && !finalStages.contains(op)) {
+				return false;
+			}
+			switch(op) {
+				case "$match":
+					if(!MemoryExpressions.isSupportedCondition((Document)arg)) {
+						return false;
+					}
+					break;
+				case "$project":
+				case "$addFields":
+				case "$replaceRoot":
+					if(!MemoryExpressions.isSupportedExpression(arg)) {
+						return false;
+					}
+					break;
+				case "$group":
+					if(((Document)arg).size() != 1 || !MemoryExpressions.isSupportedExpression(((Document)arg).get("_id"))) {
+						return false;
+					}
+					break;
+				case "$unwind":
+					String path = arg instanceof Document ? ((Document)arg).getString("path") : (String)arg;
+					if(path == null || path.indexOf('.') >= 0) {
+						return false;
+					}
+					break;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Executes a pipeline on the metadata objects in memory. When only skip and limit stages follow the row stages, the
+	 * rows are returned while later metadata objects are still being processed, like a cursor of MongoDB. Otherwise all
+	 * rows are produced before the remaining stages are applied
+	 * 
+	 * @param pipeline the pipeline produced by the parser
+	 * @param maxTimeMs the maximum time in milliseconds of the query, after which it fails like in MongoDB, 0 for no limit
+	 * @return the resulting documents, which must be closed if they are not read to the end
+	 * 
+	 */
+	public Results execute(List<Document> pipeline, long maxTimeMs) throws Exception {
+		//stages are prepared once, the row stages before the first final stage are applied to each metadata object in parallel
+		Object[] prepared = new Object[pipeline.size()];
+		int split = pipeline.size();
+		for(int i = 0; i < pipeline.size(); i++) {
+			Document stage = pipeline.get(i);
+			String op = stage.keySet().iterator().next();
+			prepared[i] = op.equals("$project") ? prepareProjection(stage.get(op, Document.class)) : stage.get(op);
+			if(split == pipeline.size() && !rowStages.contains(op)) {
+				split = i;
+			}
+		}
+		//the skip and limit stages that directly follow the row stages keep the rows from offset to offset + limit,
+		//so each chunk needs at most offset + limit rows, since the rows of the chunks are concatenated in order
+		long offset = 0;
+		long limit = Long.MAX_VALUE;
+		int tail = split;
+		for(; tail < pipeline.size(); tail++) {
+			String op = pipeline.get(tail).keySet().iterator().next();
+			if(op.equals("$skip")) {
+				long skip = ((Number)prepared[tail]).longValue();
+				offset += skip;
+				limit = limit == Long.MAX_VALUE ? limit : Math.max(0, limit - skip);
+			}else if(op.equals("$limit")) {
+				limit = Math.min(limit, ((Number)prepared[tail]).longValue());
+			}else {
+				break;
+			}
+		}
+		Limits limits = new Limits(maxTimeMs, limit == Long.MAX_VALUE ? Long.MAX_VALUE : offset + limit);
+		if(tail == pipeline.size()) {
+			Results results = new Results(documents, pipeline, prepared, split, limits, threads * 2, offset, limit);
+			//the first chunk is processed here, so that errors are reported before the response is started
+			results.hasNext();
+			return results;
+		}
+		ArrayList<Document> rows = new Results(documents, pipeline, prepared, split, limits, Integer.MAX_VALUE, 0, Long.MAX_VALUE).toList();
+
+		//the remaining stages are applied to all rows, which are not limited any more
+		Limits rowLimits = new Limits(limits.maxTimeMs, limits.deadline, Long.MAX_VALUE);
+		for(int i = split; i < pipeline.size(); i++) {
+			rowLimits.checkTime();
+			String op = pipeline.get(i).keySet().iterator().next();
+			if(rowStages.contains(op)) {
+				ArrayList<Document> out = new ArrayList<Document>();
+				for(Document doc : rows) {
+					applyRowStages(doc, pipeline, prepared, i, i + 1, out, rowLimits);
+				}
+				rows = out;
+			}else if(op.equals("$group")) {
+				rows = group(rows, ((Document)prepared[i]).get("_id"));
+			}else if(op.equals("$sort")) {
+				rows = sort(rows, (Document)prepared[i]);
+			}else if(op.equals("$skip")) {
+				int skip = ((Number)prepared[i]).intValue();
+				rows = skip >= rows.size() ? new ArrayList<Document>() : new ArrayList<Document>(rows.subList(skip, rows.size()));
+			}else if(op.equals("$limit")) {
+				int max = ((Number)prepared[i]).intValue();
+				if(max < rows.size()) {
+					rows = new ArrayList<Document>(rows.subList(0, max));
+				}
+			}
+		}
+		return new Results(rows);
+	}
+
+	/**
+	 * Applies row stages to a row depth-first: each row produced by a stage goes through the next stages before the next row
+	 * 
+	 * @param doc the row
+	 * @param pipeline the pipeline
+	 * @param prepared the arguments of the stages, with project stages converted to Projection objects
+	 * @param i the index of the stage to apply
+	 * @param end the index after the last stage to apply
+	 * @param out the rows produced by the last stage
+	 * @param limits the limits of the execution
+	 * 
+	 */
+	private static void applyRowStages(Document doc, List<Document> pipeline, Object[] prepared, int i, int end, ArrayList<Document> out, Limits limits) throws Exception {
+		if(i == end) {
+			out.add(doc);
+			return;
+		}
+		String op = pipeline.get(i).keySet().iterator().next();
+		Object arg = prepared[i];
+		switch(op) {
+			case "$match":
+				if(MemoryExpressions.matches(doc, (Document)arg)) {
+					applyRowStages(doc, pipeline, prepared, i + 1, end, out, limits);
+				}
+				break;
+			case "$project":
+				applyRowStages(project(doc, (Projection)arg), pipeline, prepared, i + 1, end, out, limits);
+				break;
+			case "$addFields":
+				Document result = new Document(doc);
+				for(Entry<String, Object> e : ((Document)arg).entrySet()) {
+					Object v = MemoryExpressions.evaluate(e.getValue(), doc, null);
+					if(v == MemoryExpressions.MISSING) {
+						result.remove(e.getKey());
+					}else {
+						result.put(e.getKey(), v);
+					}
+				}
+				applyRowStages(result, pipeline, prepared, i + 1, end, out, limits);
+				break;
+			case "$replaceRoot":
+				Object root = MemoryExpressions.evaluate(((Document)arg).get("newRoot"), doc, null);
+				if(!(root instanceof Document)) {
+					throw new Exception("'newRoot' expression must evaluate to an object");
+				}
+				applyRowStages((Document)root, pipeline, prepared, i + 1, end, out, limits);
+				break;
+			case "$unwind":
+				unwind(doc, arg, pipeline, prepared, i, end, out, limits);
+				break;
+			default:
+				throw new Exception("Stage not supported by the memory engine: " + op);
+		}
+	}
+
+	/**
+	 * Applies an unwind stage to a row and the next stages to each resulting row
+	 * 
+	 * @param doc the row
+	 * @param arg the argument of the unwind stage
+	 * @param pipeline the pipeline
+	 * @param prepared the arguments of the stages
+	 * @param i the index of the unwind stage
+	 * @param end the index after the last stage to apply
+	 * @param out the rows produced by the last stage
+	 * @param limits the limits of the execution
+	 * 
+	 */
+	private static void unwind(Document doc, Object arg, List<Document> pipeline, Object[] prepared, int i, int end, ArrayList<Document> out, Limits limits) throws Exception {
+		String path = arg instanceof Document ? ((Document)arg).getString("path") : (String)arg;
+		boolean preserve = arg instanceof Document && ((Document)arg).getBoolean("preserveNullAndEmptyArrays", false);
+		String field = path.substring(1);
+		if(field.contains(".")) {
+			throw new Exception("Unwind of nested fields not supported by the memory engine: " + path);
+		}
+		Object value = doc.get(field);
+		if(value instanceof List) {
+			List<?> list = (List<?>)value;
+			if(list.isEmpty()) {
+				if(preserve) {
+					Document result = new Document(doc);
+					result.remove(field);
+					applyRowStages(result, pipeline, prepared, i + 1, end, out, limits);
+				}
+				return;
+			}
+			for(Object o : list) {
+				//the unwinds of nested tables multiply the rows of a single metadata object, so the limits are checked for each element
+				if(out.size() >= limits.maxRows) {
+					return;
+				}
+				limits.checkTime();
+				Document result = new Document(doc);
+				result.put(field, o);
+				applyRowStages(result, pipeline, prepared, i + 1, end, out, limits);
+			}
+		}else if(value != null || preserve) {
+			applyRowStages(doc, pipeline, prepared, i + 1, end, out, limits);
+		}
+	}
+
+	/**
+	 * Converts a project stage to a tree of fields
+	 * 
+	 * @param spec the argument of the project stage
+	 * @return the projection
+	 * 
+	 */
+	private static Projection prepareProjection(Document spec) {
+		Projection result = new Projection();
+		addToTree(result.tree, "", spec);
+		//a projection of only _id keeps only _id, like in MongoDB
+		result.exclusion = isExclusion(result.tree) && !(result.tree.size() == 1 && Boolean.TRUE.equals(result.tree.get("_id")));
+		if(!result.exclusion && !result.tree.containsKey("_id")) {
+			//_id is kept unless it is removed explicitly
+			result.tree.put("_id", Boolean.TRUE);
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the fields of a project stage to a tree, splitting dotted paths and nested objects to nested trees
+	 * 
+	 * @param tree the tree
+	 * @param prefix the path of the object of the fields, ending with a dot, or an empty string
+	 * @param spec the fields
+	 * 
+	 */
+	private static void addToTree(Document tree, String prefix, Document spec) {
+		for(Entry<String, Object> e : spec.entrySet()) {
+			String path = prefix + e.getKey();
+			Object v = e.getValue();
+			if(v instanceof Document && !MemoryExpressions.isOperatorObject((Document)v) && !((Document)v).isEmpty()) {
+				addToTree(tree, path + ".", (Document)v);
+				continue;
+			}
+			Object leaf;
+			if(v instanceof Boolean || v instanceof Number) {
+				leaf = MemoryExpressions.isTrue(v);
+			}else {
+				leaf = new Expression(v);
+			}
+			String[] parts = path.split("\\.");
+			Document node = tree;
+			for(int i = 0; i < parts.length - 1; i++) {
+				Object child = node.get(parts[i]);
+				if(!(child instanceof Document)) {
+					child = new Document();
+					node.put(parts[i], child);
+				}
+				node = (Document)child;
+			}
+			node.put(parts[parts.length - 1], leaf);
+		}
+	}
+
+	/**
+	 * Checks if a tree of fields only removes fields, apart from _id
+	 * 
+	 * @param tree the tree
+	 * @return true if all fields are FALSE
+	 * 
+	 */
+	private static boolean isExclusion(Document tree) {
+		for(Entry<String, Object> e : tree.entrySet()) {
+			Object v = e.getValue();
+			if(v instanceof Document) {
+				if(!isExclusion((Document)v)) {
+					return false;
+				}
+			}else if(!Boolean.FALSE.equals(v) && !e.getKey().equals("_id")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Applies a project stage to a row
+	 * 
+	 * @param doc the row
+	 * @param projection the project stage
+	 * @return the new row
+	 * 
+	 */
+	private static Document project(Document doc, Projection projection) throws Exception {
+		if(projection.exclusion) {
+			return exclude(doc, projection.tree);
+		}
+		return include(doc, projection.tree, doc);
+	}
+
+	/**
+	 * Keeps the fields of a tree from an object and adds the computed fields of the tree. Fields are kept in the order of the
+	 * object, followed by the computed fields in the order of the tree
+	 * 
+	 * @param obj the object
+	 * @param tree the tree
+	 * @param root the row, used to compute fields
+	 * @return the new object
+	 * 
+	 */
+	private static Document include(Document obj, Document tree, Document root) throws Exception {
+		Document result = new Document();
+		for(Entry<String, Object> e : obj.entrySet()) {
+			Object t = tree.get(e.getKey());
+			if(Boolean.TRUE.equals(t)) {
+				result.append(e.getKey(), e.getValue());
+			}else if(t instanceof Document) {
+				Object v = includeValue(e.getValue(), (Document)t, root);
+				if(v != MemoryExpressions.MISSING) {
+					result.append(e.getKey(), v);
+				}
+			}
+		}
+		for(Entry<String, Object> e : tree.entrySet()) {
+			Object t = e.getValue();
+			if(t instanceof Expression) {
+				Object v = MemoryExpressions.evaluate(((Expression)t).expr, root, null);
+				if(v != MemoryExpressions.MISSING) {
+					result.append(e.getKey(), v);
+				}
+			}else if(t instanceof Document && !obj.containsKey(e.getKey()) && hasExpression((Document)t)) {
+				result.append(e.getKey(), include(new Document(), (Document)t, root));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Applies a nested tree of an inclusion to the value of a field. Objects in arrays are projected and other values in arrays
+	 * are removed, a field that is neither an object nor an array is removed
+	 * 
+	 * @param value the value of the field
+	 * @param tree the nested tree
+	 * @param root the row, used to compute fields
+	 * @return the new value or MISSING
+	 * 
+	 */
+	private static Object includeValue(Object value, Document tree, Document root) throws Exception {
+		if(value instanceof Document) {
+			return include((Document)value, tree, root);
+		}
+		if(value instanceof List) {
+			ArrayList<Object> result = new ArrayList<Object>();
+			for(Object o : (List<?>)value) {
+				if(o instanceof Document || o instanceof List) {
+					result.add(includeValue(o, tree, root));
+				}
+			}
+			return result;
+		}
+		return MemoryExpressions.MISSING;
+	}
+
+	/**
+	 * Checks if a tree of fields computes any field
+	 * 
+	 * @param tree the tree
+	 * @return true if it contains an Expression
+	 * 
+	 */
+	private static boolean hasExpression(Document tree) {
+		for(Object v : tree.values()) {
+			if(v instanceof Expression || (v instanceof Document && hasExpression((Document)v))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the fields of a tree from an object, applying nested trees to objects and to objects in arrays
+	 * 
+	 * @param obj the object
+	 * @param tree the tree
+	 * @return the new object
+	 * 
+	 */
+	private static Document exclude(Document obj, Document tree) {
+		Document result = new Document();
+		for(Entry<String, Object> e : obj.entrySet()) {
+			Object t = tree.get(e.getKey());
+			if(t instanceof Document) {
+				result.append(e.getKey(), excludeValue(e.getValue(), (Document)t));
+			}else if(!Boolean.FALSE.equals(t)) {
+				result.append(e.getKey(), e.getValue());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Applies a nested tree of an exclusion to the value of a field
+	 * 
+	 * @param value the value of the field
+	 * @param tree the nested tree
+	 * @return the new value
+	 * 
+	 */
+	private static Object excludeValue(Object value, Document tree) {
+		if(value instanceof Document) {
+			return exclude((Document)value, tree);
+		}
+		if(value instanceof List) {
+			ArrayList<Object> result = new ArrayList<Object>();
+			for(Object o : (List<?>)value) {
+				result.add(excludeValue(o, tree));
+			}
+			return result;
+		}
+		return value;
+	}
+
+	/**
+	 * Applies a group stage that only has an _id, which keeps one row for each distinct value of the _id
+	 * 
+	 * @param rows the rows
+	 * @param id the expression of the _id
+	 * @return a row with the _id of each group, in the order the groups were found
+	 * 
+	 */
+	private static ArrayList<Document> group(ArrayList<Document> rows, Object id) throws Exception {
+		TreeSet<Object> seen = new TreeSet<Object>(MemoryExpressions::compare);
+		ArrayList<Document> result = new ArrayList<Document>();
+		for(Document doc : rows) {
+			Object v = MemoryExpressions.evaluate(id, doc, null);
+			if(v == MemoryExpressions.MISSING) {
+				v = null;
+			}
+			if(seen.add(v)) {
+				result.add(new Document("_id", v));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Applies a sort stage. An array is sorted by its smallest element in ascending order and by its largest element in
+	 * descending order, missing fields are sorted as null and empty arrays before null
+	 * 
+	 * @param rows the rows
+	 * @param sort the fields to sort by, with 1 or -1 for the direction
+	 * @return the sorted rows
+	 * 
+	 */
+	private static ArrayList<Document> sort(ArrayList<Document> rows, Document sort) {
+		ArrayList<String[]> paths = new ArrayList<String[]>();
+		ArrayList<Integer> directions = new ArrayList<Integer>();
+		for(Entry<String, Object> e : sort.entrySet()) {
+			paths.add(MemoryExpressions.splitPath(e.getKey()));
+			directions.add(((Number)e.getValue()).intValue() < 0 ? -1 : 1);
+		}
+		//the keys of each row are computed once before sorting
+		ArrayList<Object[]> keyed = new ArrayList<Object[]>();
+		for(Document doc : rows) {
+			Object[] k = new Object[paths.size() + 1];
+			for(int i = 0; i < paths.size(); i++) {
+				k[i] = sortKey(MemoryExpressions.getPath(doc, paths.get(i), 0), directions.get(i));
+			}
+			k[paths.size()] = doc;
+			keyed.add(k);
+		}
+		keyed.sort((a, b) -> {
+			for(int i = 0; i < directions.size(); i++) {
+				int c = MemoryExpressions.compare(a[i], b[i]);
+				if(c != 0) {
+					return c * directions.get(i);
+				}
+			}
+			return 0;
+		});
+		ArrayList<Document> result = new ArrayList<Document>(rows.size());
+		for(Object[] k : keyed) {
+			result.add((Document)k[paths.size()]);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the value a field is sorted by
+	 * 
+	 * @param value the value of the field
+	 * @param direction 1 for ascending order, -1 for descending order
+	 * @return the value to compare
+	 * 
+	 */
+	private static Object sortKey(Object value, int direction) {
+		if(value == MemoryExpressions.MISSING) {
+			return null;
+		}
+		if(value instanceof List) {
+			List<?> list = (List<?>)value;
+			if(list.isEmpty()) {
+				return MemoryExpressions.MISSING;
+			}
+			Object result = list.get(0);
+			for(Object o : list) {
+				if(MemoryExpressions.compare(o, result) * direction < 0) {
+					result = o;
+				}
+			}
+			return result;
+		}
+		return value;
+	}
+
+	/**
+	 * Copies a value read from MongoDB with arrays sized to their contents and with field names and short strings interned,
+	 * since the same names and values repeat in every metadata object
+	 * 
+	 * @param value the value
+	 * @return the copy
+	 * 
+	 */
+	@SuppressWarnings("unchecked")
+	static Object compact(Object value) {
+		if(value instanceof Document) {
+			Document result = new Document();
+			for(Entry<String, Object> e : ((Document)value).entrySet()) {
+				result.put(e.getKey().intern(), compact(e.getValue()));
+			}
+			return result;
+		}
+		if(value instanceof List) {
+			List<Object> list = (List<Object>)value;
+			ArrayList<Object> result = new ArrayList<Object>(list.size());
+			for(Object o : list) {
+				result.add(compact(o));
+			}
+			return result;
+		}
+		if(value instanceof String && ((String)value).length() <= 64) {
+			return ((String)value).intern();
+		}
+		return value;
+	}
+}
@@ -0,0 +1,161 @@
+/** @file MemoryEngineCheck.java */
+
+package oaql2;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import org.bson.Document;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+
+/**
+ * Differential check of the memory engine: executes the pipelines of a set of queries both in MongoDB and in memory, on
+ * the metadata objects of a running database, and reports the queries whose results differ. The sample descriptions of
+ * the database directory can be inserted first with database/insert.sh
+ * 
+ * Run with mvn compile exec:java@memory-engine-check -Dexec.args="[MongoDB URL] [file with one query per line]"
+ */
+public class MemoryEngineCheck {
+
+	/** Queries covering the operators, stages and expressions produced by the parser */
+	static final String[] queries = {
+		"SELECT s.title, s.version FROM Service s WHERE s.title LIKE \"pet\"",
+		"SELECT s.title FROM Service s WHERE s.description IS NULL",
+		"SELECT s.title FROM Service s WHERE s.licenseName IS NOT NULL",
+		"SELECT r.path, r.method FROM Service s JOIN Request r ON s WHERE r.method = \"get\" AND s.openapiVersion = \"3.1.0\"",
+		"SELECT r.path, r.method FROM Request r WHERE r.method = \"get\" XOR r.deprecated = true",
+		"SELECT r.path FROM Request r WHERE r.method = \"post\" OR r.method = \"put\" ORDER BY r.path ASC",
+		"SELECT DISTINCT p.name FROM Request r JOIN Schema sc ON r JOIN Property p ON sc WHERE p.type = \"string\" AND r.method = \"post\"",
+		"SELECT r.path, p.name FROM Request r JOIN Parameter p ON r WHERE p.in = \"query\" AND (p.required = true OR p.deprecated = false)",
+		"SELECT s.title, p.name FROM Service s JOIN Request r ON s JOIN Schema sc ON r JOIN Property p ON sc WHERE p.x-refersTo = \"https://schema.org/Person\"",
+		"SELECT sc.type FROM Schema sc WHERE sc.x-kindOf = \"https://schema.org/Thing\"",
+		"SELECT r.* FROM Request r WHERE r.deprecated = true",
+		"SELECT DISTINCT t.name FROM Request r JOIN Tag t ON r WHERE t.name = r.tags",
+		"SELECT s.title, r.path, re.statusCode FROM Service s JOIN Request r ON s JOIN Response re ON r WHERE re.statusCode BETWEEN 400 AND 499",
+		"SELECT re.statusCode FROM Response re WHERE re.statusCode NOT BETWEEN 200 AND 299",
+		"SELECT s.title, r.path FROM Service s JOIN Request r ON s ORDER BY s.title DESC LIMIT 50"
+	};
+
+	/**
+	 * Runs the check and exits with status 1 if any query has different results
+	 * 
+	 * @param args the URL of MongoDB, by default mongodb://localhost:27017, and optionally a file with the queries to check
+	 * 
+	 */
+	public static void main(String[] args) throws Exception {
+		String url = args.length > 0 ? args[0] : "mongodb://localhost:27017";
+		List<String> checked = args.length > 1 ? Files.readAllLines(new File(args[1]).toPath(), StandardCharsets.UTF_8) : List.of(queries);
+
+		//semantic conditions are expanded with the snapshot of the semantic model, as in the server
+		if(Server.semanticSnapshotFile.exists()) {
+			Server.semSnapshot = new SemanticSnapshot(Server.semanticSnapshotFile);
+		}else {
+			System.out.println("No semantic model snapshot at " + Server.semanticSnapshotFile + ", queries on semantic fields will fail");
+		}
+
+		MongoClient cli = MongoClients.create(url);
+		MongoCollection<Document> coll = cli.getDatabase(Server.dbName).getCollection(Server.collectionName);
+		MemoryEngine engine = new MemoryEngine(Runtime.getRuntime().availableProcessors());
+		engine.load(coll);
+		int same = 0, different = 0, skipped = 0;
+		for(String query : checked) {
+			if(query.isBlank()) {
+				continue;
+			}
+			String result;
+			try {
+				result = check(query, coll, engine);
+			}catch(Exception e) {
+				result = "translation failed: " + e.getMessage();
+			}
+			if(result == null) {
+				same++;
+				System.out.println("same      " + query);
+			}else if(result.startsWith("skipped")) {
+				skipped++;
+				System.out.println(result + "   " + query);
+			}else {
+				different++;
+				System.out.println("DIFFERENT " + query + "\n          " + result);
+			}
+		}
+		cli.close();
+		System.out.println(same + " queries with the same results, " + different + " different, " + skipped + " not supported in memory");
+		System.exit(different > 0 ? 1 : 0);
+	}
+
+	/**
+	 * Executes a query on both engines and compares the results. Rows are compared as sets, since rows with equal sort
+	 * keys may come in any order, and only their number is compared after a skip or limit stage, which may keep different
+	 * rows with equal sort keys
+	 * 
+	 * @param query the OAQL2 query
+	 * @param coll the metadata collection
+	 * @param engine the memory engine holding the metadata objects of the collection
+	 * @return null if the results are the same, otherwise a description of the difference
+	 * 
+	 */
+	@SuppressWarnings("deprecation")
+	static String check(String query, MongoCollection<Document> coll, MemoryEngine engine) throws Exception {
+		Lexer lexer = new Lexer(new StringReader(query));
+		Parser parser = new Parser(lexer);
+		ArrayList<String> exclusionList = new ArrayList<String>();
+		ArrayList<Document> pipeline = parser.getPipeline(exclusionList);
+		QueryPlan plan = new QueryPlan(parser.getCollection(), pipeline, exclusionList, 0);
+		if(!MemoryEngine.supports(plan)) {
+			return "skipped  ";
+		}
+
+		ArrayList<String> mongoRows = new ArrayList<String>();
+		String mongoError = null;
+		try {
+			for(Document doc : coll.aggregate(pipeline).allowDiskUse(true)) {
+				mongoRows.add(doc.toJson());
+			}
+		}catch(Exception e) {
+			mongoError = e.getMessage();
+		}
+		ArrayList<String> memoryRows = new ArrayList<String>();
+		String memoryError = null;
+		try {
+			Iterator<Document> rows = engine.execute(pipeline, 0);
+			while(rows.hasNext()) {
+				memoryRows.add(rows.next().toJson());
+			}
+		}catch(Exception e) {
+			memoryError = e.getMessage();
+		}
+
+		if(mongoError != null || memoryError != null) {
+			if(mongoError != null && memoryError != null) {
+				return null;
+			}
+			return mongoError != null ? "fails only in MongoDB: " + mongoError : "fails only in memory: " + memoryError;
+		}
+		boolean limited = false;
+		for(Document stage : pipeline) {
+			limited |= stage.containsKey("$skip") || stage.containsKey("$limit");
+		}
+		if(mongoRows.size() != memoryRows.size()) {
+			return mongoRows.size() + " rows in MongoDB, " + memoryRows.size() + " rows in memory";
+		}
+		if(limited) {
+			return null;
+		}
+		Collections.sort(mongoRows);
+		Collections.sort(memoryRows);
+		for(int i = 0; i < mongoRows.size(); i++) {
+			if(!mongoRows.get(i).equals(memoryRows.get(i))) {
+				return "MongoDB returned " + mongoRows.get(i) + " where memory returned " + memoryRows.get(i);
+			}
+		}
+		return null;
+	}
+}
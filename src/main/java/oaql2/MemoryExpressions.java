@@ -0,0 +1,780 @@
+/** @file MemoryExpressions.java */
+
+package oaql2;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+/**
+ * Evaluates the conditions and aggregation expressions produced by the parser on documents held in memory, following the
+ * semantics of MongoDB: field paths traverse arrays, a missing field is different from a field holding null and values of
+ * different types are ordered by their type. Only the operators that the parser and Model produce are supported
+ */
+public class MemoryExpressions {
+
+	/** The value of a field that does not exist */
+	static final Object MISSING = new Object();
+
+	/** Field paths split at dots, since the same few paths are evaluated for every row */
+	private static final ConcurrentHashMap<String, String[]> splitPaths = new ConcurrentHashMap<String, String[]>();
+
+	/** Compiled regular expressions of LIKE conditions */
+	private static final ConcurrentHashMap<String, Pattern> patterns = new ConcurrentHashMap<String, Pattern>();
+
+	/** The maximum number of compiled regular expressions kept, after which they are all dropped */
+	private static final int maxPatterns = 10000;
+
+	/** Operators supported at the top level of a condition, MongoDB rejects others such as $not */
+	private static final Set<String> logicalOperators = Set.of("$and", "$or", "$nor", "$expr");
+
+	/** Query operators supported on a field */
+	private static final Set<String> fieldOperators = Set.of("$eq", "$ne", "$in", "$nin", "$exists", "$gt", "$gte", "$lt", "$lte", "$regex", "$options", "$not");
+
+	/** Operators of aggregation expressions supported by evaluate */
+	private static final Set<String> expressionOperators = Set.of("$literal", "$concatArrays", "$let", "$reduce", "$cond", "$isArray", "$in", "$ifNull",
+			"$eq", "$ne", "$gt", "$gte", "$lt", "$lte", "$and", "$or", "$not");
+
+	/**
+	 * Checks if a condition of a match stage uses only supported operators, so that a query that would fail or behave
+	 * differently in memory is executed in MongoDB instead
+	 * 
+	 * @param condition the condition
+	 * @return true if the condition can be evaluated by matches
+	 * 
+	 */
+	public static boolean isSupportedCondition(Document condition) {
+		for(Entry<String, Object> e : condition.entrySet()) {
+			String key = e.getKey();
+			Object value = e.getValue();
+			if(key.startsWith("$")) {
+				if(!logicalOperators.contains(key)) {
+					return false;
+				}
+				if(key.equals("$expr")) {
+					if(!isSupportedExpression(value)) {
+						return false;
+					}
+					continue;
+				}
+				if(!(value instanceof List)) {
+					return false;
+				}
+				for(Object o : (List<?>)value) {
+					if(!(o instanceof Document) || !isSupportedCondition((Document)o)) {
+						return false;
+					}
+				}
+			}else if(value instanceof Document && isOperatorObject((Document)value) && !isSupportedFieldCondition((Document)value, true)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if the operators applied to a field are supported
+	 * 
+	 * @param operators the operators and their operands
+	 * @param allowNot true if $not may be used, which MongoDB does not allow inside $not
+	 * @return true if the operators can be evaluated by matchesOperator
+	 * 
+	 */
+	private static boolean isSupportedFieldCondition(Document operators, boolean allowNot) {
+		for(Entry<String, Object> e : operators.entrySet()) {
+			String op = e.getKey();
+			if(!fieldOperators.contains(op)) {
+				return false;
+			}
+			if(op.equals("$not")) {
+				if(!allowNot || !(e.getValue() instanceof Document) || !isSupportedFieldCondition((Document)e.getValue(), false)) {
+					return false;
+				}
+			}else if((op.equals("$regex") || op.equals("$options")) && !(e.getValue() instanceof String)) {
+				return false;
+			}else if((op.equals("$in") || op.equals("$nin")) && !(e.getValue() instanceof List)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if an aggregation expression, or an object of expressions such as a project stage, uses only supported operators
+	 * 
+	 * @param expr the expression
+	 * @return true if the expression can be evaluated by evaluate
+	 * 
+	 */
+	public static boolean isSupportedExpression(Object expr) {
+		if(expr instanceof List) {
+			for(Object o : (List<?>)expr) {
+				if(!isSupportedExpression(o)) {
+					return false;
+				}
+			}
+		}else if(expr instanceof Document) {
+			Document d = (Document)expr;
+			if(isOperatorObject(d)) {
+				String op = d.keySet().iterator().next();
+				if(d.size() != 1 || !expressionOperators.contains(op)) {
+					return false;
+				}
+				return op.equals("$literal") || isSupportedExpression(d.get(op));
+			}
+			for(Object v : d.values()) {
+				if(!isSupportedExpression(v)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if a document matches a condition of a match stage
+	 * 
+	 * @param doc the document
+	 * @param condition the condition
+	 * @return true if the document matches
+	 * 
+	 */
+	public static boolean matches(Document doc, Document condition) throws Exception {
+		for(Entry<String, Object> e : condition.entrySet()) {
+			if(!matches(doc, e.getKey(), e.getValue())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if a document matches one field of a condition
+	 * 
+	 * @param doc the document
+	 * @param key a field path or a logical operator
+	 * @param value the condition on the field or the operands of the operator
+	 * @return true if the document matches
+	 * 
+	 */
+	@SuppressWarnings("unchecked")
+	private static boolean matches(Document doc, String key, Object value) throws Exception {
+		switch(key) {
+			case "$and":
+				for(Document d : (List<Document>)value) {
+					if(!matches(doc, d)) {
+						return false;
+					}
+				}
+				return true;
+			case "$or":
+				for(Document d : (List<Document>)value) {
+					if(matches(doc, d)) {
+						return true;
+					}
+				}
+				return false;
+			case "$nor":
+				for(Document d : (List<Document>)value) {
+					if(matches(doc, d)) {
+						return false;
+					}
+				}
+				return true;
+			case "$expr":
+				return isTrue(evaluate(value, doc, null));
+		}
+		if(key.startsWith("$")) {
+			throw new Exception("Operator not supported by the memory engine: " + key);
+		}
+		ArrayList<Object> values = new ArrayList<Object>();
+		collectValues(doc, splitPath(key), 0, values);
+		if(value instanceof Document && isOperatorObject((Document)value)) {
+			Document operators = (Document)value;
+			for(Entry<String, Object> e : operators.entrySet()) {
+				if(!e.getKey().equals("$options") && !matchesOperator(values, e.getKey(), e.getValue(), operators)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return equalsAny(values, value);
+	}
+
+	/**
+	 * Checks if the values of a field match a query operator
+	 * 
+	 * @param values the values of the field, as found by collectValues
+	 * @param operator the operator
+	 * @param arg the operand of the operator
+	 * @param operators all operators applied to the field, used for the options of $regex
+	 * @return true if the values match
+	 * 
+	 */
+	private static boolean matchesOperator(ArrayList<Object> values, String operator, Object arg, Document operators) throws Exception {
+		switch(operator) {
+			case "$eq":
+				return equalsAny(values, arg);
+			case "$ne":
+				return !equalsAny(values, arg);
+			case "$in":
+				for(Object o : (List<?>)arg) {
+					if(equalsAny(values, o)) {
+						return true;
+					}
+				}
+				return false;
+			case "$nin":
+				return !matchesOperator(values, "$in", arg, operators);
+			case "$exists":
+				for(Object v : values) {
+					if(v != MISSING) {
+						return isTrue(arg);
+					}
+				}
+				return !isTrue(arg);
+			case "$gt":
+			case "$gte":
+			case "$lt":
+			case "$lte":
+				if(arg == null) {
+					//null is only equal to null and missing fields, nothing is greater or less
+					return operator.endsWith("e") && equalsAny(values, null);
+				}
+				for(Object v : values) {
+					//only values of the same type are compared, e.g. a string never matches a condition on a number
+					if(v != MISSING && typeOrder(v) == typeOrder(arg) && compareWith(operator, compare(v, arg))) {
+						return true;
+					}
+				}
+				return false;
+			case "$regex":
+				Pattern p = getPattern((String)arg, operators.getString("$options"));
+				for(Object v : values) {
+					if(v instanceof String && p.matcher((String)v).find()) {
+						return true;
+					}
+				}
+				return false;
+			case "$not":
+				Document d = (Document)arg;
+				for(Entry<String, Object> e : d.entrySet()) {
+					if(!e.getKey().equals("$options") && !matchesOperator(values, e.getKey(), e.getValue(), d)) {
+						return true;
+					}
+				}
+				return false;
+		}
+		throw new Exception("Operator not supported by the memory engine: " + operator);
+	}
+
+	/**
+	 * Checks if any value of a field is equal to a given value
+	 * 
+	 * @param values the values of the field, as found by collectValues
+	 * @param target the value
+	 * @return true if some value is equal, or if the target is null and the field is null or missing
+	 * 
+	 */
+	private static boolean equalsAny(ArrayList<Object> values, Object target) {
+		for(Object v : values) {
+			if(target == null ? v == null || v == MISSING : v != MISSING && compare(v, target) == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Finds the values of a field path in a condition. Arrays on the path are traversed and an array at the end of the path
+	 * contributes both itself and its elements, so that a condition matches if any of them matches
+	 * 
+	 * @param value the object the rest of the path is applied to
+	 * @param path the field path split at dots
+	 * @param i the index of the next part of the path
+	 * @param out the values found so far, with MISSING for each place where the path does not exist
+	 * 
+	 */
+	private static void collectValues(Object value, String[] path, int i, ArrayList<Object> out) {
+		if(i == path.length) {
+			out.add(value);
+			if(value instanceof List) {
+				out.addAll((List<?>)value);
+			}
+		}else if(value instanceof Document) {
+			Document d = (Document)value;
+			Object v = d.get(path[i]);
+			if(v == null && !d.containsKey(path[i])) {
+				out.add(MISSING);
+			}else {
+				collectValues(v, path, i + 1, out);
+			}
+		}else if(value instanceof List && i > 0) {
+			for(Object o : (List<?>)value) {
+				if(o instanceof Document) {
+					collectValues(o, path, i, out);
+				}
+			}
+		}else {
+			out.add(MISSING);
+		}
+	}
+
+	/**
+	 * Evaluates an aggregation expression
+	 * 
+	 * @param expr the expression
+	 * @param root the document the expression is evaluated on
+	 * @param vars the variables defined by enclosing $let and $reduce expressions, or null
+	 * @return the value, MISSING if it refers to a field that does not exist
+	 * 
+	 */
+	@SuppressWarnings("unchecked")
+	public static Object evaluate(Object expr, Document root, HashMap<String, Object> vars) throws Exception {
+		if(expr instanceof String) {
+			String s = (String)expr;
+			if(s.startsWith("$$")) {
+				int dot = s.indexOf('.');
+				String name = dot < 0 ? s.substring(2) : s.substring(2, dot);
+				Object value;
+				if(name.equals("ROOT") || name.equals("CURRENT")) {
+					value = root;
+				}else if(vars != null && vars.containsKey(name)) {
+					value = vars.get(name);
+				}else {
+					throw new Exception("Use of undefined variable: " + name);
+				}
+				return dot < 0 ? value : getPath(value, splitPath(s.substring(dot + 1)), 0);
+			}
+			if(s.startsWith("$")) {
+				return getPath(root, splitPath(s.substring(1)), 0);
+			}
+			return s;
+		}
+		if(expr instanceof List) {
+			ArrayList<Object> result = new ArrayList<Object>();
+			for(Object o : (List<Object>)expr) {
+				Object v = evaluate(o, root, vars);
+				result.add(v == MISSING ? null : v);
+			}
+			return result;
+		}
+		if(!(expr instanceof Document)) {
+			return expr;
+		}
+		Document d = (Document)expr;
+		if(!isOperatorObject(d)) {
+			//an object whose fields are expressions, fields evaluating to missing values are left out
+			Document result = new Document();
+			for(Entry<String, Object> e : d.entrySet()) {
+				Object v = evaluate(e.getValue(), root, vars);
+				if(v != MISSING) {
+					result.append(e.getKey(), v);
+				}
+			}
+			return result;
+		}
+		String operator = d.keySet().iterator().next();
+		Object arg = d.get(operator);
+		switch(operator) {
+			case "$literal":
+				return arg;
+			case "$concatArrays": {
+				ArrayList<Object> result = new ArrayList<Object>();
+				for(Object o : (List<Object>)arg) {
+					Object v = evaluate(o, root, vars);
+					if(v == null || v == MISSING) {
+						return null;
+					}
+					if(!(v instanceof List)) {
+						throw new Exception("$concatArrays only supports arrays");
+					}
+					result.addAll((List<Object>)v);
+				}
+				return result;
+			}
+			case "$let": {
+				Document let = (Document)arg;
+				HashMap<String, Object> inner = vars == null ? new HashMap<String, Object>() : new HashMap<String, Object>(vars);
+				for(Entry<String, Object> e : let.get("vars", Document.class).entrySet()) {
+					inner.put(e.getKey(), evaluate(e.getValue(), root, vars));
+				}
+				return evaluate(let.get("in"), root, inner);
+			}
+			case "$reduce": {
+				Document reduce = (Document)arg;
+				Object input = evaluate(reduce.get("input"), root, vars);
+				if(input == null || input == MISSING) {
+					return null;
+				}
+				if(!(input instanceof List)) {
+					throw new Exception("$reduce requires an array as input");
+				}
+				Object value = evaluate(reduce.get("initialValue"), root, vars);
+				HashMap<String, Object> inner = vars == null ? new HashMap<String, Object>() : new HashMap<String, Object>(vars);
+				for(Object o : (List<Object>)input) {
+					inner.put("this", o);
+					inner.put("value", value);
+					value = evaluate(reduce.get("in"), root, inner);
+				}
+				return value;
+			}
+			case "$cond": {
+				Object cond, then, otherwise;
+				if(arg instanceof List) {
+					List<Object> args = (List<Object>)arg;
+					cond = args.get(0);
+					then = args.get(1);
+					otherwise = args.get(2);
+				}else {
+					Document args = (Document)arg;
+					cond = args.get("if");
+					then = args.get("then");
+					otherwise = args.get("else");
+				}
+				return evaluate(isTrue(evaluate(cond, root, vars)) ? then : otherwise, root, vars);
+			}
+			case "$isArray":
+				return evaluate(arg instanceof List ? ((List<Object>)arg).get(0) : arg, root, vars) instanceof List;
+			case "$in": {
+				List<Object> args = (List<Object>)arg;
+				Object value = evaluate(args.get(0), root, vars);
+				Object array = evaluate(args.get(1), root, vars);
+				if(!(array instanceof List)) {
+					throw new Exception("$in requires an array as a second argument");
+				}
+				for(Object o : (List<Object>)array) {
+					if(compare(value, o) == 0) {
+						return true;
+					}
+				}
+				return false;
+			}
+			case "$ifNull": {
+				Object value = null;
+				for(Object o : (List<Object>)arg) {
+					value = evaluate(o, root, vars);
+					if(value != null && value != MISSING) {
+						return value;
+					}
+				}
+				return value;
+			}
+			case "$eq":
+			case "$ne":
+			case "$gt":
+			case "$gte":
+			case "$lt":
+			case "$lte": {
+				List<Object> args = (List<Object>)arg;
+				return compareWith(operator, compare(evaluate(args.get(0), root, vars), evaluate(args.get(1), root, vars)));
+			}
+			case "$and":
+				for(Object o : (List<Object>)arg) {
+					if(!isTrue(evaluate(o, root, vars))) {
+						return false;
+					}
+				}
+				return true;
+			case "$or":
+				for(Object o : (List<Object>)arg) {
+					if(isTrue(evaluate(o, root, vars))) {
+						return true;
+					}
+				}
+				return false;
+			case "$not":
+				return !isTrue(evaluate(arg instanceof List ? ((List<Object>)arg).get(0) : arg, root, vars));
+		}
+		throw new Exception("Expression not supported by the memory engine: " + operator);
+	}
+
+	/**
+	 * Finds the value of a field path in an aggregation expression. An array on the path gives the array of the values found
+	 * in its elements, leaving out elements where the rest of the path does not exist
+	 * 
+	 * @param value the object the rest of the path is applied to
+	 * @param path the field path split at dots
+	 * @param i the index of the next part of the path
+	 * @return the value or MISSING
+	 * 
+	 */
+	static Object getPath(Object value, String[] path, int i) {
+		if(i == path.length) {
+			return value;
+		}
+		if(value instanceof Document) {
+			Document d = (Document)value;
+			Object v = d.get(path[i]);
+			if(v == null && !d.containsKey(path[i])) {
+				return MISSING;
+			}
+			return getPath(v, path, i + 1);
+		}
+		if(value instanceof List) {
+			ArrayList<Object> result = new ArrayList<Object>();
+			for(Object o : (List<?>)value) {
+				if(o instanceof Document || o instanceof List) {
+					Object v = getPath(o, path, i);
+					if(v != MISSING) {
+						result.add(v);
+					}
+				}
+			}
+			return result;
+		}
+		return MISSING;
+	}
+
+	/**
+	 * Compares two values in the order MongoDB uses for comparisons and sorting: values of different types are ordered by
+	 * their type and numbers of any type are compared by their value
+	 * 
+	 * @param a the first value, may be MISSING
+	 * @param b the second value, may be MISSING
+	 * @return a negative number, zero or a positive number if a is less than, equal to or greater than b
+	 * 
+	 */
+	public static int compare(Object a, Object b) {
+		int ta = typeOrder(a);
+		int tb = typeOrder(b);
+		if(ta != tb) {
+			return Integer.compare(ta, tb);
+		}
+		if(a instanceof Number) {
+			return compareNumbers((Number)a, (Number)b);
+		}
+		if(a instanceof String) {
+			return compareStrings((String)a, (String)b);
+		}
+		if(a instanceof Document) {
+			Document da = (Document)a;
+			Document db = (Document)b;
+			Iterator<Entry<String, Object>> ia = da.entrySet().iterator();
+			Iterator<Entry<String, Object>> ib = db.entrySet().iterator();
+			while(ia.hasNext() && ib.hasNext()) {
+				Entry<String, Object> ea = ia.next();
+				Entry<String, Object> eb = ib.next();
+				int c = Integer.compare(typeOrder(ea.getValue()), typeOrder(eb.getValue()));
+				if(c == 0) {
+					c = compareStrings(ea.getKey(), eb.getKey());
+				}
+				if(c == 0) {
+					c = compare(ea.getValue(), eb.getValue());
+				}
+				if(c != 0) {
+					return c;
+				}
+			}
+			return Boolean.compare(ia.hasNext(), ib.hasNext());
+		}
+		if(a instanceof List) {
+			List<?> la = (List<?>)a;
+			List<?> lb = (List<?>)b;
+			for(int i = 0; i < la.size() && i < lb.size(); i++) {
+				int c = compare(la.get(i), lb.get(i));
+				if(c != 0) {
+					return c;
+				}
+			}
+			return Integer.compare(la.size(), lb.size());
+		}
+		if(a instanceof Boolean) {
+			return Boolean.compare((Boolean)a, (Boolean)b);
+		}
+		if(a instanceof ObjectId) {
+			return ((ObjectId)a).compareTo((ObjectId)b);
+		}
+		if(a instanceof Date) {
+			return ((Date)a).compareTo((Date)b);
+		}
+		if(a == null || a == MISSING) {
+			return 0;
+		}
+		return a.toString().compareTo(b.toString());
+	}
+
+	/**
+	 * Returns the position of the type of a value in the order of types of MongoDB
+	 * 
+	 * @param v the value
+	 * @return the position, lower for types that are ordered first
+	 * 
+	 */
+	static int typeOrder(Object v) {
+		if(v == MISSING) {
+			return 0;
+		}else if(v == null) {
+			return 1;
+		}else if(v instanceof Number) {
+			return 2;
+		}else if(v instanceof String) {
+			return 3;
+		}else if(v instanceof Document) {
+			return 4;
+		}else if(v instanceof List) {
+			return 5;
+		}else if(v instanceof ObjectId) {
+			return 7;
+		}else if(v instanceof Boolean) {
+			return 8;
+		}else if(v instanceof Date) {
+			return 9;
+		}
+		return 6;
+	}
+
+	/**
+	 * Compares two numbers of any type by their value, with NaN less than all other numbers
+	 * 
+	 * @param a the first number
+	 * @param b the second number
+	 * @return a negative number, zero or a positive number if a is less than, equal to or greater than b
+	 * 
+	 */
+	private static int compareNumbers(Number a, Number b) {
+		if((a instanceof Integer || a instanceof Long) && (b instanceof Integer || b instanceof Long)) {
+			return Long.compare(a.longValue(), b.longValue());
+		}
+		double x = a instanceof Decimal128 ? ((Decimal128)a).bigDecimalValue().doubleValue() : a.doubleValue();
+		double y = b instanceof Decimal128 ? ((Decimal128)b).bigDecimalValue().doubleValue() : b.doubleValue();
+		if(Double.isNaN(x) || Double.isNaN(y)) {
+			return Boolean.compare(!Double.isNaN(x), !Double.isNaN(y));
+		}
+		return Double.compare(x == 0 ? 0.0 : x, y == 0 ? 0.0 : y);
+	}
+
+	/**
+	 * Compares two strings by their code points, which is the order of their UTF-8 bytes used by MongoDB
+	 * 
+	 * @param a the first string
+	 * @param b the second string
+	 * @return a negative number, zero or a positive number if a is less than, equal to or greater than b
+	 * 
+	 */
+	private static int compareStrings(String a, String b) {
+		int i = 0;
+		int j = 0;
+		while(i < a.length() && j < b.length()) {
+			int ca = a.codePointAt(i);
+			int cb = b.codePointAt(j);
+			if(ca != cb) {
+				return Integer.compare(ca, cb);
+			}
+			i += Character.charCount(ca);
+			j += Character.charCount(cb);
+		}
+		return Boolean.compare(i < a.length(), j < b.length());
+	}
+
+	/**
+	 * Applies a comparison operator to the result of compare
+	 * 
+	 * @param operator the comparison operator
+	 * @param c the result of compare
+	 * @return the result of the comparison
+	 * 
+	 */
+	private static boolean compareWith(String operator, int c) {
+		switch(operator) {
+			case "$eq":
+				return c == 0;
+			case "$ne":
+				return c != 0;
+			case "$gt":
+				return c > 0;
+			case "$gte":
+				return c >= 0;
+			case "$lt":
+				return c < 0;
+			default:
+				return c <= 0;
+		}
+	}
+
+	/**
+	 * Checks if a value is true in an aggregation expression
+	 * 
+	 * @param v the value
+	 * @return false for false, null, missing values and zero, true for anything else
+	 * 
+	 */
+	static boolean isTrue(Object v) {
+		if(v == null || v == MISSING) {
+			return false;
+		}
+		if(v instanceof Boolean) {
+			return (Boolean)v;
+		}
+		if(v instanceof Number) {
+			return compareNumbers((Number)v, 0) != 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if an object holds operators instead of fields
+	 * 
+	 * @param d the object
+	 * @return true if its first field starts with "$"
+	 * 
+	 */
+	static boolean isOperatorObject(Document d) {
+		return !d.isEmpty() && d.keySet().iterator().next().startsWith("$");
+	}
+
+	/**
+	 * Splits a field path at dots
+	 * 
+	 * @param path the field path
+	 * @return the parts of the path
+	 * 
+	 */
+	static String[] splitPath(String path) {
+		return splitPaths.computeIfAbsent(path, k -> k.split("\\."));
+	}
+
+	/**
+	 * Compiles the regular expression of a $regex operator
+	 * 
+	 * @param regex the regular expression
+	 * @param options the options of $regex or null
+	 * @return the compiled regular expression
+	 * 
+	 */
+	private static Pattern getPattern(String regex, String options) {
+		String key = (options == null ? "" : options) + "/" + regex;
+		Pattern result = patterns.get(key);
+		if(result == null) {
+			int flags = 0;
+			if(options != null) {
+				for(char c : options.toCharArray()) {
+					if(c == 'i') {
+						flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+					}else if(c == 'm') {
+						flags |= Pattern.MULTILINE;
+					}else if(c == 's') {
+						flags |= Pattern.DOTALL;
+					}else if(c == 'x') {
+						flags |= Pattern.COMMENTS;
+					}
+				}
+			}
+			result = Pattern.compile(regex, flags);
+			if(patterns.size() >= maxPatterns) {
+				patterns.clear();
+			}
+			patterns.put(key, result);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,369 @@
+/** @file Metrics.java */
+
+package oaql2;
+
+import java.util.Arrays;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and histograms of the server, exported in the Prometheus text format.
+ * Recording a value only updates atomic counters, so it can be done on the hot path of every request
+ */
+public class Metrics {
+
+	/** Phase of a query spent translating it, without semantic lookups */
+	public static final int PARSE = 0;
+
+	/** Phase of a query spent looking up the semantic model while translating it */
+	public static final int SEMANTIC = 1;
+
+	/** Phase of a query spent waiting for results from MongoDB */
+	public static final int EXECUTION = 2;
+
+	/** Phase of a query spent converting results from MongoDB to result objects */
+	public static final int SHAPING = 3;
+
+	/** Phase of a query spent writing result objects to the response */
+	public static final int SERIALIZATION = 4;
+
+	/** Names of the phases of a query, used as labels */
+	static final String[] phaseNames = {"parse", "semantic", "execution", "shaping", "serialization"};
+
+	/**
+	 * Histogram with two buckets for each power of 2, so that the relative error of any value is at most 50%
+	 * with a few dozen buckets. Bounds are kept in the unit of the recorded values and scaled when exported
+	 */
+	static class Histogram {
+
+		/** Upper bounds of the buckets, except the last bucket which has no bound */
+		final double[] bounds;
+
+		/** Number of values in each bucket */
+		final AtomicLongArray counts;
+
+		/** Sum of the recorded values */
+		final LongAdder sum = new LongAdder();
+
+		/** Factor converting recorded values to the exported unit */
+		final double scale;
+
+		/**
+		 * Constructor to initialize a Histogram
+		 * 
+		 * @param minExp the power of 2 of the lowest bucket bound
+		 * @param maxExp the power of 2 of the highest bucket bound
+		 * @param scale factor converting recorded values to the exported unit
+		 * 
+		 */
+		Histogram(int minExp, int maxExp, double scale) {
+			bounds = new double[2 * (maxExp - minExp) + 1];
+			for(int e = minExp, i = 0; e <= maxExp; e++) {
+				bounds[i++] = Math.pow(2, e);
+				if(e < maxExp) {
+					bounds[i++] = 1.5 * Math.pow(2, e);
+				}
+			}
+			counts = new AtomicLongArray(bounds.length + 1);
+			this.scale = scale;
+		}
+
+		/**
+		 * Records a value
+		 * 
+		 * @param value the value
+		 * 
+		 */
+		void record(long value) {
+			int i = Arrays.binarySearch(bounds, value);
+			counts.incrementAndGet(i < 0 ? -i - 1 : i);
+			sum.add(value);
+		}
+
+		/**
+		 * Writes the buckets, sum and count of the histogram
+		 * 
+		 * @param sb the output
+		 * @param name the name of the metric
+		 * @param labels the labels of the histogram without braces, may be empty
+		 * 
+		 */
+		void write(StringBuilder sb, String name, String labels) {
+			String prefix = labels.isEmpty() ? "" : labels + ",";
+			long total = 0;
+			for(int i = 0; i < bounds.length; i++) {
+				total += counts.get(i);
+				sb.append(name).append("_bucket{").append(prefix).append("le=\"").append(bounds[i] * scale).append("\"} ").append(total).append('\n');
+			}
+			total += counts.get(bounds.length);
+			sb.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(total).append('\n');
+			String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+			sb.append(name).append("_sum").append(braces).append(' ').append(sum.sum() * scale).append('\n');
+			sb.append(name).append("_count").append(braces).append(' ').append(total).append('\n');
+		}
+	}
+
+	/**
+	 * Accumulates the time spent in each phase of one query
+	 */
+	public static class QueryPhases {
+
+		/** Time in nanoseconds of each phase */
+		final long[] nanos = new long[phaseNames.length];
+
+		/** The end of the last measured phase */
+		long last = System.nanoTime();
+
+		/**
+		 * Adds the time since the end of the previous phase to a phase
+		 * 
+		 * @param phase the phase that just ended
+		 * 
+		 */
+		public void end(int phase) {
+			long now = System.nanoTime();
+			nanos[phase] += now - last;
+			last = now;
+		}
+
+		/**
+		 * Moves time measured for one phase to another
+		 * 
+		 * @param from the phase that included the time
+		 * @param to the phase that the time belongs to
+		 * @param time the time in nanoseconds
+		 * 
+		 */
+		public void move(int from, int to, long time) {
+			nanos[from] -= time;
+			nanos[to] += time;
+		}
+	}
+
+	/** Latency of requests in nanoseconds by route */
+	private static final ConcurrentHashMap<String, Histogram> requestDurations = new ConcurrentHashMap<String, Histogram>();
+
+	/** Number of requests by route */
+	private static final ConcurrentHashMap<String, LongAdder> requests = new ConcurrentHashMap<String, LongAdder>();
+
+	/** Number of requests that failed by route */
+	private static final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+
+	/** Number of requests rejected by admission control by route */
+	private static final ConcurrentHashMap<String, LongAdder> rejected = new ConcurrentHashMap<String, LongAdder>();
+
+	/** Number of requests being handled by route */
+	private static final ConcurrentHashMap<String, LongAdder> inFlight = new ConcurrentHashMap<String, LongAdder>();
+
+	/** Time in nanoseconds of each phase of queries */
+	private static final Histogram[] phaseDurations = new Histogram[phaseNames.length];
+
+	/** Number of results of queries */
+	private static final Histogram queryResults = new Histogram(0, 24, 1);
+
+	/** Size in bytes of inserted descriptions */
+	private static final Histogram descriptionSizes = new Histogram(8, 28, 1);
+
+	/** Number of inserted descriptions */
+	private static final LongAdder descriptionsInserted = new LongAdder();
+
+	/** Number of bytes of inserted descriptions */
+	private static final LongAdder descriptionBytes = new LongAdder();
+
+	/** Time in nanoseconds spent in semantic lookups by the current thread since it was last reset */
+	private static final ThreadLocal<long[]> semanticTime = ThreadLocal.withInitial(() -> new long[1]);
+
+	static {
+		for(int i = 0; i < phaseNames.length; i++) {
+			phaseDurations[i] = latencyHistogram();
+		}
+	}
+
+	/**
+	 * Creates a histogram for latencies from 1 microsecond to about 1 minute, recorded in nanoseconds and exported in seconds
+	 * 
+	 * @return the histogram
+	 * 
+	 */
+	private static Histogram latencyHistogram() {
+		return new Histogram(10, 36, 1e-9);
+	}
+
+	/**
+	 * Marks the start of a request
+	 * 
+	 * @param route the name of the route of the request
+	 * 
+	 */
+	public static void requestStarted(String route) {
+		inFlight.computeIfAbsent(route, k -> new LongAdder()).increment();
+	}
+
+	/**
+	 * Marks the end of a request
+	 * 
+	 * @param route the name of the route of the request
+	 * @param nanos the latency of the request in nanoseconds
+	 * @param failed true if the request failed
+	 * 
+	 */
+	public static void requestFinished(String route, long nanos, boolean failed) {
+		inFlight.get(route).decrement();
+		requests.computeIfAbsent(route, k -> new LongAdder()).increment();
+		if(failed) {
+			errors.computeIfAbsent(route, k -> new LongAdder()).increment();
+		}
+		requestDurations.computeIfAbsent(route, k -> latencyHistogram()).record(nanos);
+	}
+
+	/**
+	 * Records a request rejected by admission control. The request must still be marked as finished with requestFinished
+	 * 
+	 * @param route the name of the route of the request
+	 * 
+	 */
+	public static void requestRejected(String route) {
+		rejected.computeIfAbsent(route, k -> new LongAdder()).increment();
+	}
+
+	/**
+	 * Records the phases and the number of results of a query
+	 * 
+	 * @param phases the time of each phase
+	 * @param resultsNum the number of results
+	 * 
+	 */
+	public static void recordQuery(QueryPhases phases, int resultsNum) {
+		for(int i = 0; i < phaseNames.length; i++) {
+			phaseDurations[i].record(phases.nanos[i]);
+		}
+		queryResults.record(resultsNum);
+	}
+
+	/**
+	 * Records an inserted description
+	 * 
+	 * @param bytes the size of the description in bytes
+	 * 
+	 */
+	public static void recordDescription(long bytes) {
+		descriptionsInserted.increment();
+		descriptionBytes.add(bytes);
+		descriptionSizes.record(bytes);
+	}
+
+	/**
+	 * Returns the size of a string encoded in UTF-8, without encoding it
+	 * 
+	 * @param s the string
+	 * @return the size in bytes
+	 * 
+	 */
+	static long utf8Length(String s) {
+		long result = 0;
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c < 0x80) {
+				result += 1;
+			}else if(c < 0x800) {
+				result += 2;
+			}else if(Character.isHighSurrogate(c)) {
+				//a surrogate pair is a single code point of 4 bytes
+				result += 4;
+				i++;
+			}else {
+				result += 3;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Adds time spent in a semantic lookup by the current thread
+	 * 
+	 * @param nanos the time in nanoseconds
+	 * 
+	 */
+	public static void addSemanticTime(long nanos) {
+		semanticTime.get()[0] += nanos;
+	}
+
+	/**
+	 * Returns and resets the time spent in semantic lookups by the current thread
+	 * 
+	 * @return the time in nanoseconds
+	 * 
+	 */
+	public static long resetSemanticTime() {
+		long[] time = semanticTime.get();
+		long result = time[0];
+		time[0] = 0;
+		return result;
+	}
+
+	/**
+	 * Writes all metrics in the Prometheus text format
+	 * 
+	 * @return the metrics
+	 * 
+	 */
+	public static String toPrometheus() {
+		StringBuilder sb = new StringBuilder();
+		writeHeader(sb, "oaql2_requests_total", "counter", "Number of HTTP requests by route");
+		writeCounters(sb, "oaql2_requests_total", requests);
+		writeHeader(sb, "oaql2_request_errors_total", "counter", "Number of HTTP requests that failed by route");
+		writeCounters(sb, "oaql2_request_errors_total", errors);
+		writeHeader(sb, "oaql2_requests_rejected_total", "counter", "Number of HTTP requests rejected by admission control by route");
+		writeCounters(sb, "oaql2_requests_rejected_total", rejected);
+		writeHeader(sb, "oaql2_requests_in_flight", "gauge", "Number of HTTP requests being handled by route");
+		writeCounters(sb, "oaql2_requests_in_flight", inFlight);
+		writeHeader(sb, "oaql2_request_duration_seconds", "histogram", "Latency of HTTP requests by route");
+		for(Entry<String, Histogram> e : new TreeMap<String, Histogram>(requestDurations).entrySet()) {
+			e.getValue().write(sb, "oaql2_request_duration_seconds", "route=\"" + e.getKey() + "\"");
+		}
+		writeHeader(sb, "oaql2_query_phase_duration_seconds", "histogram", "Time spent in each phase of queries");
+		for(int i = 0; i < phaseNames.length; i++) {
+			phaseDurations[i].write(sb, "oaql2_query_phase_duration_seconds", "phase=\"" + phaseNames[i] + "\"");
+		}
+		writeHeader(sb, "oaql2_query_results", "histogram", "Number of results of queries");
+		queryResults.write(sb, "oaql2_query_results", "");
+		writeHeader(sb, "oaql2_descriptions_inserted_total", "counter", "Number of inserted OpenAPI descriptions");
+		sb.append("oaql2_descriptions_inserted_total ").append(descriptionsInserted.sum()).append('\n');
+		writeHeader(sb, "oaql2_description_bytes_total", "counter", "Number of bytes of inserted OpenAPI descriptions");
+		sb.append("oaql2_description_bytes_total ").append(descriptionBytes.sum()).append('\n');
+		writeHeader(sb, "oaql2_description_size_bytes", "histogram", "Size of inserted OpenAPI descriptions");
+		descriptionSizes.write(sb, "oaql2_description_size_bytes", "");
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the help and type lines of a metric
+	 * 
+	 * @param sb the output
+	 * @param name the name of the metric
+	 * @param type the type of the metric
+	 * @param help the description of the metric
+	 * 
+	 */
+	private static void writeHeader(StringBuilder sb, String name, String type, String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Writes a counter or gauge for each route
+	 * 
+	 * @param sb the output
+	 * @param name the name of the metric
+	 * @param values the value for each route
+	 * 
+	 */
+	private static void writeCounters(StringBuilder sb, String name, ConcurrentHashMap<String, LongAdder> values) {
+		for(Entry<String, LongAdder> e : new TreeMap<String, LongAdder>(values).entrySet()) {
+			sb.append(name).append("{route=\"").append(e.getKey()).append("\"} ").append(e.getValue().sum()).append('\n');
+		}
+	}
+}
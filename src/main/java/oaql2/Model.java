@@ -336,59 +336,32 @@ public class Model {
 		entry("Webhook", new Model("Webhook"))
 	));
 	
-	/** JS function for concatenating all Property arrays during querying in MongoDB */
-	public static String propFunc = "function rec(obj){"
-										+ "  var res=[];"
-										+ "  if(obj.hasOwnProperty(\"Property\")){"
-										+ "    for(var i=0; i<obj.Property.length; i++){"
-										+ "      res.push(obj.Property[i]);"
-										+ "      res=res.concat(rec(obj.Property[i]));"
-										+ "    }"
-										+ "  }"
-										+ "  if(obj.hasOwnProperty(\"Item\")){"
-										+ "    for(var j=0; j<obj.Item.length; j++){"
-										+ "      res=res.concat(rec(obj.Item[j]));"
-										+ "    }"
-										+ "  }"
-										+ "  return res;"
-										+ "}";
-
-	/** JS function for concatenating all Item arrays during querying in MongoDB */
-	public static String itemFunc = "function rec(obj){"
-										+ "  var res=[];"
-										+ "  if(obj.hasOwnProperty(\"Item\")){"
-										+ "    for(var i=0; i<obj.Item.length; i++){"
-										+ "      res.push(obj.Item[i]);"
-										+ "      res=res.concat(rec(obj.Item[i]));"
-										+ "    }"
-										+ "  }"
-										+ "  if(obj.hasOwnProperty(\"Property\")){"
-										+ "    for(var j=0; j<obj.Property.length; j++){"
-										+ "      res=res.concat(rec(obj.Property[j]));"
-										+ "    }"
-										+ "  }"
-										+ "  return res;"
-										+ "}";
+	/** Maximum depth of nested Property and Item objects that are found when a query starts from Property or Item, descriptions nested deeper are rejected */
+	public static int maxNestingDepth = 20;
 
 	/** Paths to index in metadata objects */
 	public static String[] indexPaths = { 
 		"Service.Request.method",
 		"Service.Request.path",
 		"Service.Request.contentType",
-		"Service.Request.x-operationType",
+		"Service.Request.x-operationTypeAncestors",
 		"Service.Request.Parameter.name",
 		"Service.Request.Response.statusCode",
 		"Service.Request.Response.contentType",
 		"Service.Request.Response.Header.name",
 		"Service.Request.Security.type",
-		"Service.Request.Schema.x-refersTo",
-		"Service.Request.Parameter.Schema.x-refersTo",
-		"Service.Request.Response.x-refersTo",
-		"Service.Request.Response.Header.x-refersTo",
-		"Service.Request.Schema.x-kindOf",
-		"Service.Request.Parameter.Schema.x-kindOf",
-		"Service.Request.Response.x-kindOf",
-		"Service.Request.Response.Header.x-kindOf",
+		"Service.Request.Schema.x-refersToAncestors",
+		"Service.Request.Parameter.Schema.x-refersToAncestors",
+		"Service.Request.Response.Schema.x-refersToAncestors",
+		"Service.Request.Response.Header.Schema.x-refersToAncestors",
+		"Service.Request.Schema.x-refersToProperAncestors",
+		"Service.Request.Parameter.Schema.x-refersToProperAncestors",
+		"Service.Request.Response.Schema.x-refersToProperAncestors",
+		"Service.Request.Response.Header.Schema.x-refersToProperAncestors",
+		"Service.Request.Schema.x-kindOfAncestors",
+		"Service.Request.Parameter.Schema.x-kindOfAncestors",
+		"Service.Request.Response.Schema.x-kindOfAncestors",
+		"Service.Request.Response.Header.Schema.x-kindOfAncestors",
 		"Service.Request.Schema.type",
 		"Service.Request.Parameter.Schema.type",
 		"Service.Request.Response.type",
@@ -397,26 +370,34 @@ public class Model {
 		"Service.Request.Parameter.Schema.Property.name",
 		"Service.Request.Response.Property.name",
 		"Service.Request.Response.Header.Property.name",
-		"Service.Request.Schema.Property.x-refersTo",
-		"Service.Request.Parameter.Schema.Property.x-refersTo",
-		"Service.Request.Response.Property.x-refersTo",
-		"Service.Request.Response.Header.Property.x-refersTo",
-		"Service.Request.Schema.Property.x-kindOf",
-		"Service.Request.Parameter.Schema.Property.x-kindOf",
-		"Service.Request.Response.Property.x-kindOf",
-		"Service.Request.Response.Header.Property.x-kindOf",
+		"Service.Request.Schema.Property.x-refersToAncestors",
+		"Service.Request.Parameter.Schema.Property.x-refersToAncestors",
+		"Service.Request.Response.Schema.Property.x-refersToAncestors",
+		"Service.Request.Response.Header.Schema.Property.x-refersToAncestors",
+		"Service.Request.Schema.Property.x-refersToProperAncestors",
+		"Service.Request.Parameter.Schema.Property.x-refersToProperAncestors",
+		"Service.Request.Response.Schema.Property.x-refersToProperAncestors",
+		"Service.Request.Response.Header.Schema.Property.x-refersToProperAncestors",
+		"Service.Request.Schema.Property.x-kindOfAncestors",
+		"Service.Request.Parameter.Schema.Property.x-kindOfAncestors",
+		"Service.Request.Response.Schema.Property.x-kindOfAncestors",
+		"Service.Request.Response.Header.Schema.Property.x-kindOfAncestors",
 		"Service.Request.Schema.Property.type",
 		"Service.Request.Parameter.Schema.Property.type",
 		"Service.Request.Response.Property.type",
 		"Service.Request.Response.Header.Property.type",
-		"Service.Request.Schema.Item.x-refersTo",
-		"Service.Request.Parameter.Schema.Item.x-refersTo",
-		"Service.Request.Response.Item.x-refersTo",
-		"Service.Request.Response.Header.Item.x-refersTo",
-		"Service.Request.Schema.Item.x-kindOf",
-		"Service.Request.Parameter.Schema.Item.x-kindOf",
-		"Service.Request.Response.Item.x-kindOf",
-		"Service.Request.Response.Header.Item.x-kindOf",
+		"Service.Request.Schema.Item.x-refersToAncestors",
+		"Service.Request.Parameter.Schema.Item.x-refersToAncestors",
+		"Service.Request.Response.Schema.Item.x-refersToAncestors",
+		"Service.Request.Response.Header.Schema.Item.x-refersToAncestors",
+		"Service.Request.Schema.Item.x-refersToProperAncestors",
+		"Service.Request.Parameter.Schema.Item.x-refersToProperAncestors",
+		"Service.Request.Response.Schema.Item.x-refersToProperAncestors",
+		"Service.Request.Response.Header.Schema.Item.x-refersToProperAncestors",
+		"Service.Request.Schema.Item.x-kindOfAncestors",
+		"Service.Request.Parameter.Schema.Item.x-kindOfAncestors",
+		"Service.Request.Response.Schema.Item.x-kindOfAncestors",
+		"Service.Request.Response.Header.Schema.Item.x-kindOfAncestors",
 		"Service.Request.Schema.Item.type",
 		"Service.Request.Parameter.Schema.Item.type",
 		"Service.Request.Response.Item.type",
@@ -459,6 +440,17 @@ public class Model {
 				contains.append(pair.substring(pair.indexOf(".") + 1), 0);
 			}
 		}
+		//the ancestors stored next to semantic annotations are not fields of the table
+		for(String field : SemanticAncestors.annotatedFields){
+			if(tableFields.containsKey(tableName + "." + field)){
+				contains.append(SemanticAncestors.ancestorsField(field), 0);
+			}
+		}
+		for(String field : SemanticAncestors.properAnnotatedFields){
+			if(tableFields.containsKey(tableName + "." + field)){
+				contains.append(SemanticAncestors.properAncestorsField(field), 0);
+			}
+		}
 		if(contains.size() == 0){
 			contains = null;
 		}
@@ -480,6 +472,60 @@ public class Model {
 		pathsForConcat = new Document("$concatArrays", newlist);
 	}
 	
+	/**
+	 * Returns an expression that collects all Property or Item objects nested at any level inside a Schema object,
+	 * following both Property and Item arrays. Nesting is followed level by level up to maxNestingDepth,
+	 * each level being computed from the previous one with $reduce
+	 * 
+	 * @param table "Property" or "Item"
+	 * @param input expression for the Schema object
+	 * @return an expression evaluating to the array of all nested objects of the table
+	 * 
+	 */
+	public static Document nestedObjectsExpression(String table, String input) {
+		//innermost expression concatenates the objects found in all levels
+		ArrayList<String> levels = new ArrayList<String>();
+		for(int i = 1; i <= maxNestingDepth; i++) {
+			levels.add("$$found" + i);
+		}
+		Document result = new Document("$concatArrays", levels);
+		
+		//level i holds all children of the objects of level i - 1 and the objects of the table among them
+		for(int i = maxNestingDepth; i > 0; i--) {
+			String prev = i == 1 ? null : "$$level" + (i - 1);
+			Document vars = new Document();
+			if(i < maxNestingDepth) {
+				vars.append("level" + i, childrenExpression(prev, input, "Property", "Item"));
+			}
+			vars.append("found" + i, childrenExpression(prev, input, table));
+			result = new Document("$let", new Document("vars", vars).append("in", result));
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns an expression that concatenates some child arrays of all objects of an array
+	 * 
+	 * @param parents variable holding the array of objects, or null for the single object given by input
+	 * @param input expression for the object used when parents is null
+	 * @param children names of the child arrays to concatenate
+	 * @return the expression
+	 * 
+	 */
+	private static Object childrenExpression(String parents, String input, String... children) {
+		ArrayList<Object> arrays = new ArrayList<Object>();
+		String obj = parents == null ? input : "$$this";
+		for(String c : children) {
+			arrays.add(new Document("$cond", Arrays.asList(new Document("$isArray", obj + "." + c), obj + "." + c, Arrays.asList())));
+		}
+		Document concat = new Document("$concatArrays", arrays);
+		if(parents == null) {
+			return concat;
+		}
+		arrays.add(0, "$$value");
+		return new Document("$reduce", new Document("input", parents).append("initialValue", Arrays.asList()).append("in", concat));
+	}
+	
 	/**
 	 * Finds all locations of an array in a metadata object
 	 * 
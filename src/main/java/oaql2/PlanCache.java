@@ -0,0 +1,316 @@
+/** @file PlanCache.java */
+
+package oaql2;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.bson.Document;
+import org.json.JSONObject;
+
+/**
+ * Bounded LRU cache of translated OAQL2 queries. Queries are normalized before lookup and their
+ * string and numeric literals are lifted out, so that queries differing only in these values share a plan
+ */
+public class PlanCache {
+
+	/** Same as NumLiteral in the lexer */
+	private static final Pattern numLiteral = Pattern.compile("[-+]?[0-9]*\\.?[0-9]+([eE][-+]?[0-9]+)?");
+
+	/** Key prefix for plans where literals are replaced by placeholders */
+	private static final String shapePrefix = "S:";
+
+	/** Key prefix for plans that can only be used for the exact same query */
+	private static final String exactPrefix = "E:";
+
+	/** The maximum number of plans kept in the cache */
+	private final int capacity;
+
+	/** The cached plans in access order */
+	private final LinkedHashMap<String, QueryPlan> plans;
+
+	/** Number of queries whose plan was found in the cache */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** Number of queries that had to be translated */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Helper class holding the result of normalizing a query
+	 */
+	static class NormalizedQuery {
+
+		/** The normalized query with placeholders instead of literals */
+		String shapeKey;
+
+		/** The normalized query with its literals */
+		String exactKey;
+
+		/** The values of the literals in the order they appear in the query */
+		ArrayList<Object> literals = new ArrayList<Object>();
+	}
+
+	/**
+	 * Constructor to initialize a PlanCache
+	 * 
+	 * @param capacity the maximum number of plans to keep, 0 disables the cache
+	 * 
+	 */
+	public PlanCache(int capacity) {
+		this.capacity = capacity;
+		this.plans = new LinkedHashMap<String, QueryPlan>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, QueryPlan> eldest) {
+				return size() > PlanCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns the plan of a query, translating the query only if no matching plan is cached
+	 * 
+	 * @param query the OAQL2 query
+	 * @return a plan that the caller can use and modify
+	 * 
+	 */
+	public QueryPlan getPlan(String query) throws Exception {
+		if(capacity <= 0) {
+			misses.incrementAndGet();
+			return translate(query, null);
+		}
+		NormalizedQuery norm = normalize(query);
+
+		//look first for a plan shared by all queries of this shape and then for a plan of this exact query
+		QueryPlan plan = get(shapePrefix + norm.shapeKey);
+		if(plan != null && plan.parametersNum == norm.literals.size()) {
+			hits.incrementAndGet();
+			return plan.instantiate(norm.literals);
+		}
+		plan = get(exactPrefix + norm.exactKey);
+		if(plan != null) {
+			hits.incrementAndGet();
+			return plan.instantiate(norm.literals);
+		}
+		misses.incrementAndGet();
+		return translate(query, norm);
+	}
+
+	/**
+	 * Translates a query and stores its plan in the cache
+	 * 
+	 * @param query the OAQL2 query
+	 * @param norm the normalized query or null if the plan should not be cached
+	 * @return the plan of the query
+	 * 
+	 */
+	@SuppressWarnings("deprecation")
+	private QueryPlan translate(String query, NormalizedQuery norm) throws Exception {
+		Lexer lexer = new Lexer(new StringReader(query));
+		Parser parser = new Parser(lexer);
+		ArrayList<String> exclusionList = new ArrayList<String>();
+		ArrayList<Document> pipeline = parser.getPipeline(exclusionList);
+		QueryPlan result = new QueryPlan(parser.getCollection(), pipeline, exclusionList, 0);
+		result.page = parser.getPage();
+		if(norm == null) {
+			return result;
+		}
+
+		//the plan is shared by the shape of the query only if every literal is used unchanged in the pipeline
+		QueryPlan shared = null;
+		if(!parser.isValueDependent() && lexer.literals.equals(norm.literals) && distinctNumbers(lexer.literals)) {
+			boolean[] found = new boolean[lexer.literals.size()];
+			ArrayList<Document> template = new ArrayList<Document>();
+			for(Document d : pipeline) {
+				template.add((Document)QueryPlan.parameterize(d, lexer.literals, found));
+			}
+			shared = new QueryPlan(result.collection, template, new ArrayList<String>(exclusionList), found.length);
+			shared.page = result.page;
+			for(boolean f : found) {
+				if(!f) {
+					shared = null;
+					break;
+				}
+			}
+		}
+		if(shared != null) {
+			put(shapePrefix + norm.shapeKey, shared);
+		}else {
+			QueryPlan exact = new QueryPlan(result.collection, pipeline, new ArrayList<String>(exclusionList), 0);
+			exact.page = result.page;
+			put(exactPrefix + norm.exactKey, exact.instantiate(norm.literals));
+		}
+		return result;
+	}
+
+	/**
+	 * Checks that no two numeric literals have the same value
+	 * 
+	 * @param literals the literals of a query
+	 * @return true if all numeric literals are distinct
+	 * 
+	 */
+	private static boolean distinctNumbers(ArrayList<Object> literals) {
+		HashSet<Object> numbers = new HashSet<Object>();
+		for(Object l : literals) {
+			if(l instanceof Double && !numbers.add(l)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Collapses whitespace outside string literals and extracts the literals of a query
+	 * the same way the lexer reads them
+	 * 
+	 * @param query the OAQL2 query
+	 * @return the normalized query
+	 * 
+	 */
+	static NormalizedQuery normalize(String query) {
+		NormalizedQuery result = new NormalizedQuery();
+		StringBuilder shape = new StringBuilder();
+		StringBuilder exact = new StringBuilder();
+		Matcher m = numLiteral.matcher(query);
+		int n = query.length();
+		int i = 0;
+		while(i < n) {
+			char c = query.charAt(i);
+			if(Character.isWhitespace(c)) {
+				//collapse any sequence of whitespace to a single space
+				while(i < n && Character.isWhitespace(query.charAt(i))) {
+					i++;
+				}
+				if(shape.length() > 0 && i < n) {
+					shape.append(' ');
+					exact.append(' ');
+				}
+			}else if(c == '"') {
+				//string literal, unescaped like in the STRING state of the lexer
+				StringBuilder value = new StringBuilder();
+				int j = i + 1;
+				while(j < n && query.charAt(j) != '"') {
+					char d = query.charAt(j);
+					if(d == '\\' && j + 1 < n && "tnr\"".indexOf(query.charAt(j + 1)) >= 0) {
+						char e = query.charAt(j + 1);
+						value.append(e == 't' ? '\t' : e == 'n' ? '\n' : e == 'r' ? '\r' : '"');
+						j += 2;
+					}else {
+						value.append(d);
+						j++;
+					}
+				}
+				j = Math.min(j + 1, n);
+				result.literals.add(value.toString());
+				shape.append("\u0000S");
+				exact.append(query, i, j);
+				i = j;
+			}else if(isLetter(c)) {
+				//identifier or field, copied as it is
+				int j = i + 1;
+				while(j < n && isIdentifierChar(query.charAt(j))) {
+					j++;
+				}
+				if(j + 1 < n && query.charAt(j) == '.' && isLetter(query.charAt(j + 1))) {
+					j += 2;
+					while(j < n && isIdentifierChar(query.charAt(j))) {
+						j++;
+					}
+				}
+				shape.append(query, i, j);
+				exact.append(query, i, j);
+				i = j;
+			}else if(m.region(i, n).lookingAt()) {
+				//numeric literal
+				int j = m.end();
+				result.literals.add(Double.parseDouble(query.substring(i, j)));
+				shape.append("\u0000N");
+				exact.append(query, i, j);
+				i = j;
+			}else {
+				shape.append(c);
+				exact.append(c);
+				i++;
+			}
+		}
+		result.shapeKey = shape.toString();
+		result.exactKey = exact.toString();
+		return result;
+	}
+
+	/**
+	 * Checks if a character can start an identifier
+	 * 
+	 * @param c the character
+	 * @return true if c is an ASCII letter
+	 * 
+	 */
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	/**
+	 * Checks if a character can be part of an identifier
+	 * 
+	 * @param c the character
+	 * @return true if c is an ASCII letter, a digit, '-' or '_'
+	 * 
+	 */
+	private static boolean isIdentifierChar(char c) {
+		return isLetter(c) || (c >= '0' && c <= '9') || c == '-' || c == '_';
+	}
+
+	/**
+	 * Returns a cached plan
+	 * 
+	 * @param key the key of the plan
+	 * @return the plan or null if not cached
+	 * 
+	 */
+	private synchronized QueryPlan get(String key) {
+		return plans.get(key);
+	}
+
+	/**
+	 * Stores a plan in the cache, evicting the least recently used plan if the cache is full
+	 * 
+	 * @param key the key of the plan
+	 * @param plan the plan
+	 * 
+	 */
+	private synchronized void put(String key, QueryPlan plan) {
+		plans.put(key, plan);
+	}
+
+	/**
+	 * Removes all plans, used when the semantic model that expanded some of them changes
+	 */
+	public synchronized void clear() {
+		plans.clear();
+	}
+
+	/**
+	 * Returns statistics about the cache
+	 * 
+	 * @return a JSON object with the size, capacity, hits and misses of the cache
+	 * 
+	 */
+	public JSONObject toJSON() {
+		int size;
+		synchronized(this) {
+			size = plans.size();
+		}
+		return new JSONObject()
+				.put("size", size)
+				.put("capacity", capacity)
+				.put("hits", hits.get())
+				.put("misses", misses.get());
+	}
+}
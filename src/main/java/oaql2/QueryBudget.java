@@ -0,0 +1,172 @@
+/** @file QueryBudget.java */
+
+package oaql2;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import org.bson.Document;
+import org.json.JSONObject;
+
+/**
+ * Limits the number of result rows of a query and the size of its response. A query over its budget is not failed: its
+ * results are truncated and the response ends with an object marking them as truncated. The rows that the pipeline creates
+ * before its last stage, e.g. by unwinding arrays before grouping or sorting, are only bounded by the time limit
+ */
+public class QueryBudget {
+
+	/** The maximum number of result rows, 0 for no limit */
+	private final int maxRows;
+
+	/** The maximum size in bytes of the response, 0 for no limit */
+	private final long maxBytes;
+
+	/** Counts the bytes of the response, if its size is limited */
+	private Counter counter;
+
+	/** The budget that was exceeded ("rows", "bytes" or "time"), null if the results are complete */
+	private String exceeded;
+
+	/**
+	 * Output stream that counts the bytes written to the body of a response
+	 */
+	static class Counter extends FilterOutputStream {
+
+		/** The number of bytes written */
+		long count = 0;
+
+		/**
+		 * Constructor to initialize a Counter
+		 * 
+		 * @param out the body of the response
+		 * 
+		 */
+		Counter(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	/**
+	 * Constructor to initialize a QueryBudget
+	 * 
+	 * @param maxRows the maximum number of result rows, 0 for no limit
+	 * @param maxBytes the maximum size in bytes of the response, 0 for no limit
+	 * 
+	 */
+	public QueryBudget(int maxRows, long maxBytes) {
+		this.maxRows = maxRows;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the pipeline to execute, which stops after one result row more than the budget, so that MongoDB does not
+	 * return rows that would be discarded while it can still be known if the results were truncated. Stages before the
+	 * limit, such as a sort or a group, still process all their input rows
+	 * 
+	 * @param pipeline the pipeline of the query, which is not modified since it may be cached
+	 * @return the pipeline to execute
+	 * 
+	 */
+	public ArrayList<Document> limit(ArrayList<Document> pipeline) {
+		if(maxRows <= 0) {
+			return pipeline;
+		}
+		ArrayList<Document> result = new ArrayList<Document>(pipeline);
+		result.add(new Document("$limit", maxRows + 1));
+		return result;
+	}
+
+	/**
+	 * Wraps the body of a response so that its size can be limited
+	 * 
+	 * @param out the body of the response
+	 * @return the stream to write the body to
+	 * 
+	 */
+	public OutputStream count(OutputStream out) {
+		if(maxBytes <= 0) {
+			return out;
+		}
+		counter = new Counter(out);
+		return counter;
+	}
+
+	/**
+	 * Checks if another row may be returned
+	 * 
+	 * @param rows the number of result rows already returned
+	 * @return false if the budget is exceeded, in which case no more rows must be returned
+	 * 
+	 */
+	public boolean allows(int rows) {
+		if(maxRows > 0 && rows >= maxRows) {
+			exceeded = "rows";
+			return false;
+		}
+		return allowsBytes();
+	}
+
+	/**
+	 * Checks if another row may be written to the response. The size of the response is counted after the buffers
+	 * of the writer, so it may exceed the budget by the size of these buffers
+	 * 
+	 * @return false if the budget is exceeded, in which case no more rows must be written
+	 * 
+	 */
+	public boolean allowsBytes() {
+		if(counter != null && counter.count >= maxBytes) {
+			exceeded = "bytes";
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Marks the results as truncated because the query ran out of time while they were written
+	 */
+	public void timedOut() {
+		exceeded = "time";
+	}
+
+	/**
+	 * Checks if the results were truncated
+	 * 
+	 * @return true if a budget was exceeded
+	 * 
+	 */
+	public boolean isTruncated() {
+		return exceeded != null;
+	}
+
+	/**
+	 * Writes the object marking the results as truncated as the last element of the response array, if they were truncated
+	 * 
+	 * @param w the writer of the response, positioned before the closing bracket of the array
+	 * @param empty true if no elements were written to the array
+	 * 
+	 */
+	public void writeMarker(Writer w, boolean empty) throws IOException {
+		if(exceeded == null) {
+			return;
+		}
+		if(!empty) {
+			w.write(',');
+		}
+		long limit = exceeded.equals("rows") ? maxRows : exceeded.equals("bytes") ? maxBytes : Server.queryMaxTimeMs;
+		new JSONObject().put("_truncated", new JSONObject().put("reason", exceeded).put("limit", limit)).write(w);
+	}
+}
@@ -0,0 +1,146 @@
+/** @file QueryPlan.java */
+
+package oaql2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import org.bson.Document;
+
+/**
+ * The result of translating an OAQL2 query, as it is stored in the plan cache
+ */
+public class QueryPlan {
+
+	/**
+	 * Placeholder for a literal of the query inside a cached pipeline
+	 */
+	static class Parameter {
+
+		/** The position of the literal in the query */
+		final int index;
+
+		/**
+		 * Constructor to initialize a Parameter
+		 * 
+		 * @param index the position of the literal in the query
+		 * 
+		 */
+		Parameter(int index) {
+			this.index = index;
+		}
+	}
+
+	/** The name of the MongoDB collection that the pipeline is executed on */
+	String collection;
+
+	/** The MongoDB pipeline, possibly containing Parameter placeholders */
+	ArrayList<Document> pipeline;
+
+	/** List of tables given in SELECT with ".*" suffix */
+	ArrayList<String> exclusionList;
+
+	/** The number of literals that are replaced by placeholders in the pipeline */
+	int parametersNum;
+
+	/** Information about the LIMIT clause of the query used to create continuation tokens, null if the query has no LIMIT */
+	Document page;
+
+	/**
+	 * Constructor to initialize a QueryPlan
+	 * 
+	 * @param collection the name of the collection that the pipeline is executed on
+	 * @param pipeline the MongoDB pipeline
+	 * @param exclusionList the list of tables given in SELECT with ".*" suffix
+	 * @param parametersNum the number of placeholders used in the pipeline
+	 * 
+	 */
+	public QueryPlan(String collection, ArrayList<Document> pipeline, ArrayList<String> exclusionList, int parametersNum) {
+		this.collection = collection;
+		this.pipeline = pipeline;
+		this.exclusionList = exclusionList;
+		this.parametersNum = parametersNum;
+	}
+
+	/**
+	 * Returns a copy of this plan where placeholders are replaced by the given literals
+	 * 
+	 * @param literals the literals of the query, in the order they appear in it
+	 * @return a new plan that can be modified and executed by the caller
+	 * 
+	 */
+	public QueryPlan instantiate(List<Object> literals) {
+		ArrayList<Document> newPipeline = new ArrayList<Document>();
+		for(Document d : pipeline) {
+			newPipeline.add((Document)copy(d, literals));
+		}
+		QueryPlan result = new QueryPlan(collection, newPipeline, new ArrayList<String>(exclusionList), 0);
+		result.page = page;
+		return result;
+	}
+
+	/**
+	 * Copies documents and lists recursively, replacing placeholders with literals
+	 * 
+	 * @param obj the value to copy
+	 * @param literals the literals of the query
+	 * @return the copy of the value
+	 * 
+	 */
+	static Object copy(Object obj, List<Object> literals) {
+		if(obj instanceof Document) {
+			Document result = new Document();
+			for(Entry<String, Object> e : ((Document)obj).entrySet()) {
+				result.append(e.getKey(), copy(e.getValue(), literals));
+			}
+			return result;
+		}
+		if(obj instanceof List) {
+			ArrayList<Object> result = new ArrayList<Object>();
+			for(Object o : (List<?>)obj) {
+				result.add(copy(o, literals));
+			}
+			return result;
+		}
+		if(obj instanceof Parameter) {
+			return literals.get(((Parameter)obj).index);
+		}
+		return obj;
+	}
+
+	/**
+	 * Replaces literals of the query found in a pipeline with placeholders.
+	 * Strings are matched by identity, so only the exact objects created by the lexer are replaced,
+	 * numbers are matched by value, so they need to be distinct
+	 * 
+	 * @param obj the value to search
+	 * @param literals the literals returned by the lexer
+	 * @param found marks the literals that were found
+	 * @return the value with placeholders
+	 * 
+	 */
+	static Object parameterize(Object obj, List<Object> literals, boolean[] found) {
+		if(obj instanceof Document) {
+			Document result = new Document();
+			for(Entry<String, Object> e : ((Document)obj).entrySet()) {
+				result.append(e.getKey(), parameterize(e.getValue(), literals, found));
+			}
+			return result;
+		}
+		if(obj instanceof List) {
+			ArrayList<Object> result = new ArrayList<Object>();
+			for(Object o : (List<?>)obj) {
+				result.add(parameterize(o, literals, found));
+			}
+			return result;
+		}
+		for(int i = 0; i < literals.size(); i++) {
+			Object l = literals.get(i);
+			if(l == obj || (obj instanceof Double && obj.equals(l))) {
+				found[i] = true;
+				return new Parameter(i);
+			}
+		}
+		return obj;
+	}
+}
@@ -0,0 +1,293 @@
+/** @file ResultCache.java */
+
+package oaql2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bson.Document;
+import org.json.JSONObject;
+
+/**
+ * Bounded LRU cache of the responses of queries, keyed by their translated pipeline. Every insertion of descriptions
+ * increases a generation counter and responses created in an older generation are not used, so that a cached response
+ * never misses inserted descriptions. Responses also expire after a time to live and the least recently used responses
+ * are evicted when their total size exceeds a limit
+ */
+public class ResultCache {
+
+	/** Increased whenever the metadata objects change, shared by all caches */
+	private static final AtomicLong generation = new AtomicLong();
+
+	/** The maximum total size in bytes of the cached responses and their keys */
+	private final long maxBytes;
+
+	/** The maximum size in bytes of a single response, larger responses are not cached */
+	private final long maxEntryBytes;
+
+	/** The time in milliseconds a response is used after it was created */
+	private final long ttlMs;
+
+	/** The cached responses in access order */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	/** The total size in bytes of the cached responses and their keys */
+	private long bytes = 0;
+
+	/** Number of queries whose response was found in the cache */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** Number of queries that had to be executed */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Helper class holding a cached response
+	 */
+	static class Entry {
+
+		/** The body of the response */
+		byte[] body;
+
+		/** The continuation token sent with the response, or null */
+		String continuationToken;
+
+		/** The number of results in the response */
+		int resultsNum;
+
+		/** The generation of the metadata objects when the query started executing */
+		long generation;
+
+		/** The time in milliseconds when the response was created */
+		long created = System.currentTimeMillis();
+
+		/**
+		 * Returns the size of the entry with its key
+		 * 
+		 * @param key the key of the entry
+		 * @return the size in bytes
+		 * 
+		 */
+		long size(String key) {
+			return body.length + 2L * key.length() + (continuationToken == null ? 0 : 2L * continuationToken.length());
+		}
+	}
+
+	/**
+	 * Output stream that writes the body of a response and keeps a copy of it, as long as the copy is not too large to cache
+	 */
+	static class Capture extends FilterOutputStream {
+
+		/** The copy of the body, null if it became too large */
+		private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+		/** The maximum size of the copy */
+		private final long limit;
+
+		/**
+		 * Constructor to initialize a Capture
+		 * 
+		 * @param out the body of the response
+		 * @param limit the maximum size of the copy
+		 * 
+		 */
+		Capture(OutputStream out, long limit) {
+			super(out);
+			this.limit = limit;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			if(copy != null) {
+				copy.write(b);
+				checkLimit();
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			if(copy != null) {
+				copy.write(b, off, len);
+				checkLimit();
+			}
+		}
+
+		/**
+		 * Drops the copy if it is too large to cache
+		 */
+		private void checkLimit() {
+			if(copy.size() > limit) {
+				copy = null;
+			}
+		}
+
+		/**
+		 * Returns the copy of the body
+		 * 
+		 * @return the bytes written or null if they were too many
+		 * 
+		 */
+		byte[] getBytes() {
+			return copy == null ? null : copy.toByteArray();
+		}
+	}
+
+	/**
+	 * Constructor to initialize a ResultCache
+	 * 
+	 * @param maxBytes the maximum total size in bytes of the cached responses, 0 disables the cache
+	 * @param maxEntryBytes the maximum size in bytes of a single response
+	 * @param ttlMs the time in milliseconds a response is used after it was created
+	 * 
+	 */
+	public ResultCache(long maxBytes, long maxEntryBytes, long ttlMs) {
+		this.maxBytes = maxBytes;
+		this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+		this.ttlMs = ttlMs;
+	}
+
+	/**
+	 * Checks if responses are cached
+	 * 
+	 * @return false if the cache is disabled
+	 * 
+	 */
+	public boolean isEnabled() {
+		return maxBytes > 0;
+	}
+
+	/**
+	 * Marks all cached responses as outdated, must be called after metadata objects are inserted or modified
+	 */
+	public static void invalidate() {
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * Returns the current generation of the metadata objects, which must be read before a query is executed and
+	 * given to put with its response
+	 * 
+	 * @return the generation
+	 * 
+	 */
+	public static long generation() {
+		return generation.get();
+	}
+
+	/**
+	 * Returns the key of the response of a query
+	 * 
+	 * @param plan the plan of the query
+	 * @return the collection, the tables given with ".*" suffix and the pipeline of the plan
+	 * 
+	 */
+	public static String key(QueryPlan plan) {
+		return plan.collection + "\n" + plan.exclusionList + "\n" + new Document("pipeline", plan.pipeline).toJson();
+	}
+
+	/**
+	 * Returns a cached response
+	 * 
+	 * @param key the key of the response
+	 * @return the response or null if it is not cached, outdated or expired
+	 * 
+	 */
+	public Entry get(String key) {
+		Entry result;
+		synchronized(this) {
+			result = entries.get(key);
+			if(result != null && (result.generation != generation.get() || System.currentTimeMillis() - result.created > ttlMs)) {
+				entries.remove(key);
+				bytes -= result.size(key);
+				result = null;
+			}
+		}
+		if(result == null) {
+			misses.incrementAndGet();
+		}else {
+			hits.incrementAndGet();
+		}
+		return result;
+	}
+
+	/**
+	 * Wraps the body of a response so that a copy of it can be cached
+	 * 
+	 * @param out the body of the response
+	 * @return the stream to write the body to
+	 * 
+	 */
+	public Capture capture(OutputStream out) {
+		return new Capture(out, maxEntryBytes);
+	}
+
+	/**
+	 * Stores a response, evicting the least recently used responses if the cache becomes too large
+	 * 
+	 * @param key the key of the response
+	 * @param capture the stream the body was written to
+	 * @param continuationToken the continuation token sent with the response, or null
+	 * @param resultsNum the number of results in the response
+	 * @param gen the generation read before the query was executed
+	 * 
+	 */
+	public void put(String key, Capture capture, String continuationToken, int resultsNum, long gen) {
+		byte[] body = capture.getBytes();
+		if(body == null || gen != generation.get()) {
+			return;
+		}
+		Entry entry = new Entry();
+		entry.body = body;
+		entry.continuationToken = continuationToken;
+		entry.resultsNum = resultsNum;
+		entry.generation = gen;
+		if(entry.size(key) > maxEntryBytes) {
+			return;
+		}
+		synchronized(this) {
+			Entry old = entries.put(key, entry);
+			if(old != null) {
+				bytes -= old.size(key);
+			}
+			bytes += entry.size(key);
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while(bytes > maxBytes && it.hasNext()) {
+				Map.Entry<String, Entry> e = it.next();
+				bytes -= e.getValue().size(e.getKey());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns statistics about the cache
+	 * 
+	 * @return a JSON object with the size, memory use, hits, misses and hit ratio of the cache
+	 * 
+	 */
+	public JSONObject toJSON() {
+		int size;
+		long used;
+		synchronized(this) {
+			size = entries.size();
+			used = bytes;
+		}
+		long h = hits.get();
+		long m = misses.get();
+		return new JSONObject()
+				.put("size", size)
+				.put("bytes", used)
+				.put("maxBytes", maxBytes)
+				.put("ttlMs", ttlMs)
+				.put("generation", generation.get())
+				.put("hits", h)
+				.put("misses", m)
+				.put("hitRatio", h + m == 0 ? 0.0 : (double)h / (h + m));
+	}
+}
@@ -0,0 +1,254 @@
+/** @file SemanticAncestors.java */
+
+package oaql2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bson.Document;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+
+/**
+ * Stores in metadata objects the ancestors of the semantic annotations, so that semantic
+ * equality in queries becomes an equality match on an indexed array
+ */
+public class SemanticAncestors {
+
+	/** Fields holding URIs of the semantic model */
+	static String[] annotatedFields = {"x-refersTo", "x-kindOf", "x-operationType"};
+
+	/** Suffix of the field that holds the ancestors of an annotated field */
+	static String suffix = "Ancestors";
+
+	/** Annotated fields that also hold their proper ancestors, which x-kindOf equality matches */
+	static String[] properAnnotatedFields = {"x-refersTo"};
+
+	/** Suffix of the field that holds the proper ancestors of an annotated field */
+	static String properSuffix = "Proper" + suffix;
+
+	/** Ancestors of each URI found so far, cleared when they are recomputed */
+	private static ConcurrentHashMap<String, ArrayList<String>> cache = new ConcurrentHashMap<String, ArrayList<String>>();
+
+	/**
+	 * Returns the name of the field holding the ancestors of a field
+	 * 
+	 * @param field the annotated field, optionally prefixed with its path
+	 * @return the name of the field with the ancestors
+	 * 
+	 */
+	public static String ancestorsField(String field) {
+		return field + suffix;
+	}
+
+	/**
+	 * Returns the name of the field holding the proper ancestors of a field, i.e. the ancestors of each of its values
+	 * without the value itself
+	 * 
+	 * @param field the annotated field, optionally prefixed with its path
+	 * @return the name of the field with the proper ancestors
+	 * 
+	 */
+	public static String properAncestorsField(String field) {
+		return field + properSuffix;
+	}
+
+	/**
+	 * Returns a URI together with all its superclasses or superproperties in the semantic model
+	 * 
+	 * @param uri the URI of a resource
+	 * @return a list starting with the URI followed by its ancestors
+	 * 
+	 */
+	static ArrayList<String> getAncestors(String uri) {
+		return cache.computeIfAbsent(uri, u -> {
+			ArrayList<String> result = new ArrayList<String>();
+			result.add(u);
+			for(String s : Server.getSuperclassesInModel(u)) {
+				if(!s.equals(u)) {
+					result.add(s);
+				}
+			}
+			return result;
+		});
+	}
+
+	/**
+	 * Adds the ancestors field next to each annotated field found in a metadata object
+	 * 
+	 * @param node a metadata object or any value inside it
+	 * @return true if any ancestors field was added, changed or removed
+	 * 
+	 */
+	public static boolean annotate(Object node) {
+		boolean changed = false;
+		if(node instanceof List) {
+			for(Object o : (List<?>)node) {
+				changed |= annotate(o);
+			}
+		}else if(node instanceof Document) {
+			Document doc = (Document)node;
+			for(Entry<String, Object> e : doc.entrySet()) {
+				if(e.getValue() instanceof Document || e.getValue() instanceof List) {
+					changed |= annotate(e.getValue());
+				}
+			}
+			for(String field : annotatedFields) {
+				changed |= annotateField(doc, field);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Computes the ancestors field of one annotated field, and its proper ancestors field if it has one
+	 * 
+	 * @param doc the object that may contain the field
+	 * @param field the name of the annotated field
+	 * @return true if any of these fields was added, changed or removed
+	 * 
+	 */
+	private static boolean annotateField(Document doc, String field) {
+		//the annotation can be a single URI or an array of URIs
+		ArrayList<String> uris = new ArrayList<String>();
+		Object value = doc.get(field);
+		if(value instanceof String) {
+			uris.add((String)value);
+		}else if(value instanceof List) {
+			for(Object o : (List<?>)value) {
+				if(o instanceof String) {
+					uris.add((String)o);
+				}
+			}
+		}
+		LinkedHashSet<String> ancestors = new LinkedHashSet<String>();
+		LinkedHashSet<String> properAncestors = new LinkedHashSet<String>();
+		for(String uri : uris) {
+			ArrayList<String> a = getAncestors(uri);
+			ancestors.addAll(a);
+			//the list starts with the URI itself
+			properAncestors.addAll(a.subList(1, a.size()));
+		}
+
+		boolean changed = store(doc, ancestorsField(field), ancestors);
+		if(Arrays.asList(properAnnotatedFields).contains(field)) {
+			changed |= store(doc, properAncestorsField(field), properAncestors);
+		}
+		return changed;
+	}
+
+	/**
+	 * Stores an array of URIs in a field, removing the field if the array is empty
+	 * 
+	 * @param doc the object holding the field
+	 * @param key the name of the field
+	 * @param values the URIs
+	 * @return true if the field was added, changed or removed
+	 * 
+	 */
+	private static boolean store(Document doc, String key, LinkedHashSet<String> values) {
+		Object old = doc.get(key);
+		if(values.size() == 0) {
+			return doc.remove(key) != null;
+		}
+		ArrayList<String> newValue = new ArrayList<String>(values);
+		if(newValue.equals(old)) {
+			return false;
+		}
+		doc.put(key, newValue);
+		return true;
+	}
+
+	/**
+	 * Recomputes the ancestors fields of all metadata objects, used after the semantic model changes
+	 * 
+	 * @param coll the collection holding the metadata objects
+	 * @return the number of metadata objects that were updated
+	 * 
+	 */
+	public static long recompute(MongoCollection<Document> coll) {
+		cache.clear();
+		ensureIndexes(coll);
+		return annotateAll(coll);
+	}
+
+	/**
+	 * Adds the ancestors fields to metadata objects stored before they were used and creates their indexes. Such objects
+	 * are detected by the missing indexes, which are created only after all objects are annotated, so that an interrupted
+	 * migration is resumed at the next startup, and so that ancestors fields added by a later version are also stored
+	 * 
+	 * @param coll the collection holding the metadata objects
+	 * @return the number of metadata objects that were updated, or -1 if all indexes already existed
+	 * 
+	 */
+	public static long migrate(MongoCollection<Document> coll) {
+		HashSet<String> indexed = new HashSet<String>();
+		for(Document index : coll.listIndexes()) {
+			indexed.add(index.get("key", Document.class).keySet().iterator().next());
+		}
+		boolean missing = false;
+		for(String p : Model.indexPaths) {
+			missing |= p.endsWith(suffix) && !indexed.contains(p);
+		}
+		if(!missing) {
+			return -1;
+		}
+		long updated = annotateAll(coll);
+		ensureIndexes(coll);
+		return updated;
+	}
+
+	/**
+	 * Recomputes the ancestors fields of all documents of a collection with the ancestors currently cached
+	 * 
+	 * @param coll a collection holding metadata objects or rows of a table
+	 * @return the number of documents that were updated
+	 * 
+	 */
+	static long annotateAll(MongoCollection<Document> coll) {
+		long updated = 0;
+		MongoCursor<Document> cursor = coll.find().iterator();
+		try {
+			while(cursor.hasNext()) {
+				Document doc = cursor.next();
+				if(annotate(doc)) {
+					coll.replaceOne(new Document("_id", doc.get("_id")), doc);
+					updated++;
+				}
+			}
+		}finally {
+			cursor.close();
+		}
+		return updated;
+	}
+
+	/**
+	 * Creates the indexes on ancestors fields, replacing any indexes on the annotated fields themselves
+	 * 
+	 * @param coll the collection holding the metadata objects
+	 * 
+	 */
+	static void ensureIndexes(MongoCollection<Document> coll) {
+		//the number of indexes in a collection is limited, so drop indexes of the old format first
+		ArrayList<String> existing = new ArrayList<String>();
+		for(Document index : coll.listIndexes()) {
+			existing.add(index.get("key", Document.class).keySet().iterator().next());
+		}
+		for(String old : existing) {
+			for(String field : annotatedFields) {
+				if(old.endsWith("." + field)) {
+					coll.dropIndex(new Document(old, 1));
+				}
+			}
+		}
+		for(String p : Model.indexPaths) {
+			if(p.endsWith(suffix)) {
+				coll.createIndex(new Document(p, 1));
+			}
+		}
+	}
+}
@@ -0,0 +1,340 @@
+/** @file SemanticSnapshot.java */
+
+package oaql2;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.apache.jena.rdf.model.InfModel;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.rdf.model.StmtIterator;
+import org.apache.jena.reasoner.ReasonerRegistry;
+import org.apache.jena.vocabulary.RDFS;
+
+/**
+ * Read-only snapshot of the semantic model, holding the transitive closure of rdfs:subClassOf and rdfs:subPropertyOf.
+ * It is created once from the ontology and memory-mapped by the server, so that no download or reasoning is needed at startup.
+ * 
+ * The file consists of a header (magic number, version, number of URIs, number of subclass ids, number of superclass ids),
+ * the offsets of each URI in the string table, the offsets of the subclasses and superclasses of each URI in the id arrays,
+ * the id arrays and finally the string table with the URIs in UTF-8, sorted by their bytes so they can be found with binary search
+ */
+public class SemanticSnapshot {
+
+	/** The first 4 bytes of a snapshot file */
+	static final int magic = 0x4F41514C;
+
+	/** The version of the file format */
+	static final int version = 1;
+
+	/** The size in bytes of the header */
+	static final int headerSize = 20;
+
+	/** The memory-mapped file */
+	private final ByteBuffer buffer;
+
+	/** The number of URIs in the snapshot */
+	private final int urisNum;
+
+	/** Position of the offsets of the URIs in the string table */
+	private final int stringOffsetsPos;
+
+	/** Position of the offsets of the subclasses of each URI */
+	private final int subOffsetsPos;
+
+	/** Position of the offsets of the superclasses of each URI */
+	private final int superOffsetsPos;
+
+	/** Position of the ids of all subclasses */
+	private final int subIdsPos;
+
+	/** Position of the ids of all superclasses */
+	private final int superIdsPos;
+
+	/** Position of the string table */
+	private final int stringsPos;
+
+	/**
+	 * Constructor that memory-maps a snapshot file
+	 * 
+	 * @param file the snapshot file
+	 * 
+	 */
+	public SemanticSnapshot(File file) throws IOException {
+		//the mapping stays valid after the channel is closed
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if(buffer.limit() < headerSize || buffer.getInt(0) != magic) {
+			throw new IOException("Not a semantic model snapshot: " + file);
+		}
+		if(buffer.getInt(4) != version) {
+			throw new IOException("Unsupported version of semantic model snapshot: " + buffer.getInt(4));
+		}
+		urisNum = buffer.getInt(8);
+		int subIdsNum = buffer.getInt(12);
+		int superIdsNum = buffer.getInt(16);
+		stringOffsetsPos = headerSize;
+		subOffsetsPos = stringOffsetsPos + 4 * (urisNum + 1);
+		superOffsetsPos = subOffsetsPos + 4 * (urisNum + 1);
+		subIdsPos = superOffsetsPos + 4 * (urisNum + 1);
+		superIdsPos = subIdsPos + 4 * subIdsNum;
+		stringsPos = superIdsPos + 4 * superIdsNum;
+		if(stringsPos + buffer.getInt(stringOffsetsPos + 4 * urisNum) != buffer.limit()) {
+			throw new IOException("Semantic model snapshot is truncated or corrupted: " + file);
+		}
+	}
+
+	/**
+	 * Returns the number of URIs in the snapshot
+	 * 
+	 * @return the number of URIs
+	 * 
+	 */
+	public int size() {
+		return urisNum;
+	}
+
+	/**
+	 * Adds the whole snapshot file to a digest, so that snapshots of different models can be told apart
+	 * 
+	 * @param digest the digest
+	 * 
+	 */
+	public void updateDigest(MessageDigest digest) {
+		ByteBuffer b = buffer.duplicate();
+		b.clear();
+		digest.update(b);
+	}
+
+	/**
+	 * Returns the subclasses and subproperties of a resource, like a SPARQL query on the model with the transitive reasoner
+	 * 
+	 * @param uri the URI of a resource in the semantic model
+	 * @return a list with all subclasses of the resource, empty if the resource is not found
+	 * 
+	 */
+	public ArrayList<String> getSubclasses(String uri) {
+		return getRelated(uri, subOffsetsPos, subIdsPos);
+	}
+
+	/**
+	 * Returns the superclasses and superproperties of a resource, like a SPARQL query on the model with the transitive reasoner
+	 * 
+	 * @param uri the URI of a resource in the semantic model
+	 * @return a list with all superclasses of the resource, empty if the resource is not found
+	 * 
+	 */
+	public ArrayList<String> getSuperclasses(String uri) {
+		return getRelated(uri, superOffsetsPos, superIdsPos);
+	}
+
+	/**
+	 * Returns the URIs related to a resource from one of the id arrays
+	 * 
+	 * @param uri the URI of the resource
+	 * @param offsetsPos position of the offsets in the id array
+	 * @param idsPos position of the id array
+	 * @return the list of related URIs
+	 * 
+	 */
+	private ArrayList<String> getRelated(String uri, int offsetsPos, int idsPos) {
+		ArrayList<String> result = new ArrayList<String>();
+		int id = find(uri.getBytes(StandardCharsets.UTF_8));
+		if(id < 0) {
+			return result;
+		}
+		int start = buffer.getInt(offsetsPos + 4 * id);
+		int end = buffer.getInt(offsetsPos + 4 * (id + 1));
+		for(int i = start; i < end; i++) {
+			result.add(getString(buffer.getInt(idsPos + 4 * i)));
+		}
+		return result;
+	}
+
+	/**
+	 * Finds the id of a URI with binary search in the string table
+	 * 
+	 * @param key the URI in UTF-8
+	 * @return the id of the URI or -1 if it does not exist
+	 * 
+	 */
+	private int find(byte[] key) {
+		int low = 0;
+		int high = urisNum - 1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compare(mid, key);
+			if(cmp < 0) {
+				low = mid + 1;
+			}else if(cmp > 0) {
+				high = mid - 1;
+			}else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Compares the bytes of a URI in the string table with a key, treating bytes as unsigned
+	 * 
+	 * @param id the id of the URI in the string table
+	 * @param key the key in UTF-8
+	 * @return a negative number, zero or a positive number if the URI is less than, equal to or greater than the key
+	 * 
+	 */
+	private int compare(int id, byte[] key) {
+		int start = stringsPos + buffer.getInt(stringOffsetsPos + 4 * id);
+		int length = stringsPos + buffer.getInt(stringOffsetsPos + 4 * (id + 1)) - start;
+		int n = Math.min(length, key.length);
+		for(int i = 0; i < n; i++) {
+			int cmp = Integer.compare(buffer.get(start + i) & 0xff, key[i] & 0xff);
+			if(cmp != 0) {
+				return cmp;
+			}
+		}
+		return Integer.compare(length, key.length);
+	}
+
+	/**
+	 * Decodes a URI of the string table
+	 * 
+	 * @param id the id of the URI
+	 * @return the URI
+	 * 
+	 */
+	private String getString(int id) {
+		int start = buffer.getInt(stringOffsetsPos + 4 * id);
+		int end = buffer.getInt(stringOffsetsPos + 4 * (id + 1));
+		byte[] bytes = new byte[end - start];
+		buffer.get(stringsPos + start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Loads an ontology, applies the transitive reasoner and writes the closure of its class and property hierarchy to a snapshot file
+	 * 
+	 * @param source the URL or path of the ontology
+	 * @param lang the language the ontology is written in
+	 * @param output the snapshot file to create
+	 * @return the number of URIs written
+	 * 
+	 */
+	public static int create(String source, String lang, File output) throws IOException {
+		InfModel model = ModelFactory.createInfModel(ReasonerRegistry.getTransitiveReasoner(), ModelFactory.createDefaultModel());
+		model.read(source, lang);
+
+		//collect the subclasses and superclasses of every URI, as returned by the reasoner
+		TreeMap<String, TreeSet<String>> sub = new TreeMap<String, TreeSet<String>>();
+		TreeMap<String, TreeSet<String>> sup = new TreeMap<String, TreeSet<String>>();
+		for(Property p : new Property[] {RDFS.subClassOf, RDFS.subPropertyOf}) {
+			StmtIterator it = model.listStatements(null, p, (RDFNode)null);
+			while(it.hasNext()) {
+				Statement s = it.next();
+				if(!s.getSubject().isURIResource() || !s.getObject().isURIResource()) {
+					continue;
+				}
+				String child = s.getSubject().getURI();
+				String parent = s.getObject().asResource().getURI();
+				sub.computeIfAbsent(parent, k -> new TreeSet<String>()).add(child);
+				sup.computeIfAbsent(child, k -> new TreeSet<String>()).add(parent);
+			}
+		}
+
+		//sort all URIs by their bytes in UTF-8, which is the order used by binary search
+		TreeSet<String> all = new TreeSet<String>(sub.keySet());
+		all.addAll(sup.keySet());
+		byte[][] uris = new byte[all.size()][];
+		int i = 0;
+		for(String s : all) {
+			uris[i++] = s.getBytes(StandardCharsets.UTF_8);
+		}
+		Arrays.sort(uris, Arrays::compareUnsigned);
+		TreeMap<String, Integer> ids = new TreeMap<String, Integer>();
+		for(i = 0; i < uris.length; i++) {
+			ids.put(new String(uris[i], StandardCharsets.UTF_8), i);
+		}
+
+		int[] subOffsets = new int[uris.length + 1];
+		int[] superOffsets = new int[uris.length + 1];
+		ArrayList<Integer> subIds = new ArrayList<Integer>();
+		ArrayList<Integer> superIds = new ArrayList<Integer>();
+		for(i = 0; i < uris.length; i++) {
+			String uri = new String(uris[i], StandardCharsets.UTF_8);
+			subOffsets[i] = subIds.size();
+			superOffsets[i] = superIds.size();
+			for(String s : sub.getOrDefault(uri, new TreeSet<String>())) {
+				subIds.add(ids.get(s));
+			}
+			for(String s : sup.getOrDefault(uri, new TreeSet<String>())) {
+				superIds.add(ids.get(s));
+			}
+		}
+		subOffsets[uris.length] = subIds.size();
+		superOffsets[uris.length] = superIds.size();
+
+		//write to a temporary file first, so that a running server never maps a partial file
+		File tmp = new File(output.getPath() + ".tmp");
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(magic);
+			out.writeInt(version);
+			out.writeInt(uris.length);
+			out.writeInt(subIds.size());
+			out.writeInt(superIds.size());
+			int offset = 0;
+			for(byte[] u : uris) {
+				out.writeInt(offset);
+				offset += u.length;
+			}
+			out.writeInt(offset);
+			for(int o : subOffsets) {
+				out.writeInt(o);
+			}
+			for(int o : superOffsets) {
+				out.writeInt(o);
+			}
+			for(int id : subIds) {
+				out.writeInt(id);
+			}
+			for(int id : superIds) {
+				out.writeInt(id);
+			}
+			for(byte[] u : uris) {
+				out.write(u);
+			}
+		}
+		if(!tmp.renameTo(output)) {
+			throw new IOException("Could not create " + output);
+		}
+		return uris.length;
+	}
+
+	/**
+	 * Creates a snapshot of the semantic model.
+	 * Arguments are optional: the output file, the URL or path of the ontology and its language.
+	 * By default the ontology and the file used by the server are used
+	 */
+	public static void main(String[] args) throws Exception {
+		File output = args.length > 0 ? new File(args[0]) : Server.semanticSnapshotFile;
+		String source = args.length > 1 ? args[1] : Server.semanticModelUrl;
+		String lang = args.length > 2 ? args[2] : Server.semanticModelLang;
+		long startTime = System.currentTimeMillis();
+		int urisNum = create(source, lang, output);
+		System.out.println("Wrote snapshot of " + urisNum + " resources from " + source + " to " + output + " in " + (System.currentTimeMillis() - startTime) + "ms");
+	}
+}
@@ -3,13 +3,26 @@
 package oaql2;
 
 import java.io.File;
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.Writer;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
 import org.json.JSONObject;
 import org.json.JSONArray;
 import org.apache.jena.ext.com.google.common.io.Files;
@@ -17,15 +30,22 @@ import org.apache.jena.query.QueryExecutionFactory;
 import org.apache.jena.query.ResultSet;
 import org.apache.jena.rdf.model.InfModel;
 import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.StmtIterator;
 import org.apache.jena.reasoner.ReasonerRegistry;
 import org.bson.Document;
 import org.bson.types.ObjectId;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import com.mongodb.ConnectionString;
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoExecutionTimeoutException;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.ReplaceOptions;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
@@ -44,32 +64,227 @@ public class Server implements HttpHandler{
 	/** The name of the MongoDB collection holding the original OpenAPI descriptions */
 	static String originalDescriptionsCollectionName = "originalDescriptions";
 
+	/** The name of the MongoDB collection holding the fingerprint of the semantic model the stored ancestors were computed with */
+	static String semanticModelCollectionName = "semanticModel";
+
+	/** If true, the rows of each table are also stored in a collection per table and queries start from the collection of their top table */
+	static boolean useTableCollections = false;
+
+	/** Prefix of the names of the MongoDB collections holding the rows of each table, followed by the name of the table */
+	static String tableCollectionPrefix = "table";
+
 	/** The URL of the semantic model used */
 	static String semanticModelUrl = "https://schema.org/version/latest/schemaorg-current-https.nt";
 
 	/** The language the semantic model is written in*/
 	static String semanticModelLang = "N-TRIPLE";
 
+	/** The path in the Docker container of the snapshot of the semantic model, created with SemanticSnapshot. If it does not exist, the model is downloaded from semanticModelUrl */
+	static File semanticSnapshotFile = new File("/usr/src/mymaven/semantic-model.snapshot");
+
 	/** The endpoint at the server for requests to insert an OpenAPI description */
 	static String insertDescriptionPath = "/insertDescription";
 
+	/** The endpoint at the server for requests to insert many OpenAPI descriptions at once */
+	static String insertDescriptionsPath = "/insertDescriptions";
+
+	/** If true, descriptions sent to insertDescriptionPath are queued and inserted in the background, which can also be requested with the parameter async=true */
+	static boolean asyncInsertDescription = false;
+
+	/** The endpoint at the server for requests to retrieve the status of a queued description */
+	static String jobsPath = "/jobs/";
+
+	/** The path in the Docker container of the directory holding queued descriptions until they are inserted */
+	static File ingestQueueDir = new File("/usr/src/mymaven/queue");
+
+	/** The maximum number of queued descriptions, more are rejected with status code 503 */
+	static int ingestQueueCapacity = 10000;
+
+	/** The number of jobs whose status is kept after their description was inserted */
+	static int ingestJobsKept = 100000;
+
+	/** The time in milliseconds before queued descriptions are inserted again after MongoDB failed */
+	static long ingestRetryDelayMs = 5000;
+
+	/** The number of times inserting a queued description is tried before its job fails */
+	static int ingestMaxAttempts = 5;
+
+	/** The number of descriptions of a batch request that are parsed and written to MongoDB together */
+	static int batchInsertChunkSize = 500;
+
+	/** The number of threads that parse descriptions of batch requests */
+	static int batchParserThreads = Runtime.getRuntime().availableProcessors();
+
+	/** The maximum number of alternatives of a single schema after expanding allOf/anyOf/oneOf/if-then-else in a description */
+	static long maxSchemaAlternatives = 50000;
+
+	/** The maximum number of schema alternatives created in total while parsing a description */
+	static long maxSchemaExpansion = 1000000;
+
 	/** The endpoint at the server for requests with OAQL2 queries */
 	static String queryPath = "/query";
 
+	/** The endpoint at the server for requests to explain how an OAQL2 query is translated and executed */
+	static String explainPath = "/explain";
+
 	/** The endpoint at the server for requests to retrieve the original OpenAPI description */
 	static String descriptionPath = "/description/";
 
+	/** The number of seconds that clients and proxies may cache a retrieved OpenAPI description, which never changes after insertion */
+	static long descriptionMaxAgeSeconds = 31536000;
+
+	/** If true, responses to queries and retrieved OpenAPI descriptions are compressed with gzip for clients that accept it */
+	static boolean compressResponses = true;
+
+	/** The size in bytes of the buffer of gzip compression */
+	static int compressionBufferSize = 65536;
+
+	/** The endpoint at the server for requests to retrieve statistics about the server */
+	static String statsPath = "/stats";
+
+	/** The endpoint at the server for requests to recompute the semantic ancestors stored in metadata objects */
+	static String recomputeAncestorsPath = "/recomputeAncestors";
+
+	/** The endpoint at the server for requests to get the metrics of the server in the Prometheus text format */
+	static String metricsPath = "/metrics";
+
+	/** The endpoint at the server for requests to get the report of the index advisor or to run its analysis */
+	static String indexAdvisorPath = "/indexAdvisor";
+
+	/** If true, the index advisor creates the indexes it suggests and drops the indexes it created when they are not used */
+	static boolean autoManageIndexes = false;
+
+	/** The time in milliseconds between two analyses of the index advisor, 0 to only run them on request */
+	static long indexAdvisorIntervalMs = 600000;
+
+	/** The minimum number of queries using a field path, since tracking started or since its advisor index was dropped, before the index advisor considers an index on it */
+	static long indexAdvisorMinQueries = 20;
+
+	/** The maximum fraction of documents matched by conditions on a field path for an index on it to be suggested */
+	static double indexAdvisorMaxSelectivity = 0.1;
+
+	/** The time in milliseconds that an index must have no uses before it is reported as unused */
+	static long indexAdvisorUnusedMs = 86400000;
+
+	/** The maximum number of indexes created by the index advisor in each collection */
+	static int indexAdvisorMaxIndexes = 20;
+
+	/** The maximum time in milliseconds of each count used by the index advisor to estimate selectivity */
+	static long indexAdvisorMaxCountTimeMs = 5000;
+
+	/** If true, the ancestors of semantic annotations are stored at insertion and queries match them instead of expanding subclasses */
+	static boolean useSemanticAncestors = true;
+
+	/** If true, results of queries are written to the response while they are received from MongoDB instead of being collected first */
+	static boolean streamQueryResults = true;
+
+	/** The number of documents requested from MongoDB in each batch while reading the results of a query */
+	static int queryBatchSize = 1000;
+
+	/** The maximum time in milliseconds that MongoDB executes a query before stopping it, 0 for no limit */
+	static long queryMaxTimeMs = 120000;
+
+	/** The maximum number of result rows of a query, further rows are dropped and the results marked as truncated, 0 for no limit. Intermediate rows created by unwinding before grouping or sorting are not counted */
+	static int queryMaxResultRows = 0;
+
+	/** The maximum size in bytes of the response of a query, further rows are dropped and the results marked as truncated, 0 for no limit */
+	static long queryMaxResponseBytes = 0;
+
+	/** The maximum number of fields in the sort of a query with LIMIT, which is limited by MongoDB */
+	static int maxSortFields = 32;
+
+	/** If true, all metadata objects are also kept in memory and queries are executed on them instead of in MongoDB */
+	static boolean useMemoryEngine = false;
+
+	/** The number of threads that execute queries in memory */
+	static int memoryEngineThreads = Runtime.getRuntime().availableProcessors();
+
+	/** The maximum number of translated queries kept in the plan cache, 0 to disable the cache */
+	static int planCacheSize = 500;
+
+	/** The maximum total size in bytes of the responses kept in the result cache, 0 to disable the cache */
+	static long resultCacheMaxBytes = 64L * 1024 * 1024;
+
+	/** The maximum size in bytes of a single response kept in the result cache */
+	static long resultCacheMaxEntryBytes = 4L * 1024 * 1024;
+
+	/** The time in milliseconds a response is kept in the result cache, unless descriptions are inserted earlier */
+	static long resultCacheTtlMs = 60000;
+
+	/** The maximum number of connections kept in the pool of the MongoDB client */
+	static int mongoMaxPoolSize = 100;
+
+	/** The minimum number of connections kept open in the pool of the MongoDB client */
+	static int mongoMinPoolSize = 0;
+
+	/** The maximum time in milliseconds that a request handler waits for a connection from the pool */
+	static long mongoMaxWaitTimeMs = 10000;
+
+	/** The time in milliseconds after which an idle connection is evicted from the pool, 0 to never evict */
+	static long mongoMaxIdleTimeMs = 60000;
+
+	/** The maximum number of requests of the query routes (query and explain together) handled at the same time, at most mongoMaxPoolSize */
+	static int queryMaxConcurrent = 64;
+
+	/** The maximum number of requests of the query routes (query and explain together) waiting to be handled, more are rejected with status code 429 */
+	static int queryMaxQueued = 256;
+
+	/** The maximum number of requests of each insertion route handled at the same time */
+	static int insertMaxConcurrent = 8;
+
+	/** The maximum number of requests of each insertion route waiting to be handled, more are rejected with status code 429 */
+	static int insertMaxQueued = 32;
+
+	/** The maximum number of requests of each other route handled at the same time */
+	static int otherMaxConcurrent = 16;
+
+	/** The maximum number of requests of each other route waiting to be handled, more are rejected with status code 429 */
+	static int otherMaxQueued = 64;
+
+	/** The maximum time in milliseconds a request waits to be handled, after which it is rejected with status code 503 */
+	static long admissionTimeoutMs = 5000;
+
+	/** The number of seconds sent in the Retry-After header of rejected requests */
+	static int retryAfterSeconds = 1;
+
 	/** The path in the Docker container of the HTML file providing the GUI */
 	static File htmlIndex = new File("/usr/src/mymaven/html/index.html");
 
-	/** Holds the semantic model */
+	/** Holds the semantic model, if it is not loaded from a snapshot */
 	static InfModel semModel;
 
+	/** Holds the snapshot of the semantic model, if it exists */
+	static SemanticSnapshot semSnapshot;
+
+	/** Holds the metadata objects in memory and executes queries on them, if useMemoryEngine is set */
+	static MemoryEngine memoryEngine;
+
 	/** Holds the URL for the MongoDB service */
 	String mongoUrl;
+
+	/** The MongoDB client shared by all request handlers, holding the connection pool */
+	MongoClient mongoClient;
+
+	/** Statistics about the connection pool of the MongoDB client */
+	ConnectionPoolStatistics poolStatistics = new ConnectionPoolStatistics();
+
+	/** Cache of translated OAQL2 queries */
+	PlanCache planCache = new PlanCache(planCacheSize);
+
+	/** Cache of responses of queries, invalidated when descriptions are inserted */
+	ResultCache resultCache = new ResultCache(resultCacheMaxBytes, resultCacheMaxEntryBytes, resultCacheTtlMs);
+
+	/** Limits the requests handled at the same time for each route */
+	ConcurrentHashMap<String, AdmissionControl> admissionControls = new ConcurrentHashMap<String, AdmissionControl>();
+
+	/** Holds descriptions accepted for insertion in the background */
+	IngestQueue ingestQueue;
+
+	/** Records the field paths used by queries and manages indexes for them */
+	IndexAdvisor indexAdvisor;
 	
 	/**
-	 * Constructor that loads semantic model, creates indexes in MongoDB if necessary and starts the server
+	 * Constructor that loads semantic model, connects to MongoDB, creates indexes in MongoDB if necessary and starts the server
 	 * 
 	 * @param port the port of the host machine to listen on for requests
 	 * @param mongoHostName the hostname of the MongoDB service
@@ -78,18 +293,40 @@ public class Server implements HttpHandler{
 	 */
 	public Server(int port, String mongoHostName, int mongoPort) throws IOException {
 		mongoUrl = "mongodb://" + mongoHostName + ":" + mongoPort;
+		mongoClient = MongoClients.create(MongoClientSettings.builder()
+				.applyConnectionString(new ConnectionString(mongoUrl))
+				.applyToConnectionPoolSettings(b -> b
+						.maxSize(mongoMaxPoolSize)
+						.minSize(mongoMinPoolSize)
+						.maxWaitTime(mongoMaxWaitTimeMs, TimeUnit.MILLISECONDS)
+						.maxConnectionIdleTime(mongoMaxIdleTimeMs, TimeUnit.MILLISECONDS)
+						.addConnectionPoolListener(poolStatistics))
+				.build());
 		
-		//load semantic model and apply reasoner
-		semModel = ModelFactory.createInfModel(ReasonerRegistry.getTransitiveReasoner(), ModelFactory.createDefaultModel());
-		semModel.read(semanticModelUrl, semanticModelLang);
+		loadSemanticModel();
 		
 		//create indexes in MongoDB if they do not already exist. If MongoDB is down, keep trying
 		while(!createIndexes());
+		if(useSemanticAncestors) {
+			migrateAncestors();
+		}
+		indexAdvisor = new IndexAdvisor(mongoClient);
+		
+		//load all metadata objects in memory before any request is served
+		if(useMemoryEngine) {
+			memoryEngine = new MemoryEngine(memoryEngineThreads);
+			memoryEngine.load(mongoClient.getDatabase(dbName).getCollection(collectionName));
+		}
+		
+		//resume the insertion of descriptions queued before a restart
+		ingestQueue = new IngestQueue(mongoClient, ingestQueueDir);
 		
 		//configure and start server
 		HttpServer server = HttpServer.create(new InetSocketAddress("0.0.0.0", port), 0);
 		server.createContext("/", this);
-		server.setExecutor(Executors.newCachedThreadPool());
+		//each request is handled in a virtual thread, so requests blocked on MongoDB do not hold platform threads and their
+		//number is only limited by the admission control of their route
+		server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
 		server.start();
 		System.out.println("Server started");
 	}
@@ -102,15 +339,111 @@ public class Server implements HttpHandler{
 	 * 
 	 */
 	public static ArrayList<String> getSubclassesInModel(String uri){
-		String query = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#> SELECT ?c WHERE { ?c rdfs:subClassOf|rdfs:subPropertyOf <" + uri + "> }";
+		//the time is reported as the semantic phase of the query being translated
+		long start = System.nanoTime();
+		try {
+			if(semSnapshot != null) {
+				ArrayList<String> result = semSnapshot.getSubclasses(uri);
+				if(result.size() == 0) {
+					result.add(uri);
+				}
+				return result;
+			}
+			String query = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#> SELECT ?c WHERE { ?c rdfs:subClassOf|rdfs:subPropertyOf <" + uri + "> }";
+		    ResultSet results = QueryExecutionFactory.create(query, semModel).execSelect();
+		    ArrayList<String> result = new ArrayList<String>();
+			while(results.hasNext()){
+		    	result.add(results.nextSolution().getResource("c").toString());
+		    }
+			if(result.size() == 0) {
+				result.add(uri);
+			}
+			return result;
+		}finally {
+			Metrics.addSemanticTime(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Loads the snapshot of the semantic model if it exists, otherwise downloads the semantic model and applies the reasoner
+	 */
+	static void loadSemanticModel() throws IOException {
+		if(semanticSnapshotFile.exists()) {
+			semSnapshot = new SemanticSnapshot(semanticSnapshotFile);
+			semModel = null;
+			System.out.println("Loaded semantic model snapshot with " + semSnapshot.size() + " resources");
+		}else {
+			InfModel model = ModelFactory.createInfModel(ReasonerRegistry.getTransitiveReasoner(), ModelFactory.createDefaultModel());
+			model.read(semanticModelUrl, semanticModelLang);
+			semModel = model;
+			semSnapshot = null;
+		}
+	}
+	
+	/**
+	 * Returns a fingerprint of the semantic model, which changes when the model changes
+	 * 
+	 * @return the SHA-256 hash of the snapshot file, or of the sorted statements of the downloaded model, in hexadecimal
+	 * 
+	 */
+	static String getSemanticModelFingerprint() {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}catch(NoSuchAlgorithmException e) {
+			//every Java platform supports SHA-256
+			throw new IllegalStateException(e);
+		}
+		if(semSnapshot != null) {
+			semSnapshot.updateDigest(digest);
+		}else {
+			ArrayList<String> statements = new ArrayList<String>();
+			StmtIterator it = semModel.getRawModel().listStatements();
+			while(it.hasNext()) {
+				statements.add(it.next().toString());
+			}
+			Collections.sort(statements);
+			for(String s : statements) {
+				digest.update((s + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+	
+	/**
+	 * Stores the fingerprint of the semantic model the ancestors in the metadata objects were computed with
+	 * 
+	 * @param db the database
+	 * @param fingerprint the fingerprint of the semantic model
+	 * 
+	 */
+	static void storeSemanticModelFingerprint(MongoDatabase db, String fingerprint) {
+		Document state = new Document("_id", "ancestors").append("fingerprint", fingerprint);
+		db.getCollection(semanticModelCollectionName).replaceOne(new Document("_id", "ancestors"), state, new ReplaceOptions().upsert(true));
+	}
+	
+	/**
+	 * Queries the reasoner and returns superclasses of given value
+	 * 
+	 * @param uri the URI of a resource in the semantic model
+	 * @return a list with all superclasses of the provided resource, not including the resource itself
+	 * 
+	 */
+	public static ArrayList<String> getSuperclassesInModel(String uri){
+		if(semSnapshot != null) {
+			ArrayList<String> result = semSnapshot.getSuperclasses(uri);
+			result.remove(uri);
+			return result;
+		}
+		String query = "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#> SELECT ?c WHERE { <" + uri + "> rdfs:subClassOf|rdfs:subPropertyOf ?c }";
 	    ResultSet results = QueryExecutionFactory.create(query, semModel).execSelect();
 	    ArrayList<String> result = new ArrayList<String>();
 		while(results.hasNext()){
-	    	result.add(results.nextSolution().getResource("c").toString());
+			String c = results.nextSolution().getResource("c").toString();
+			if(!c.equals(uri)) {
+				result.add(c);
+			}
 	    }
-		if(result.size() == 0) {
-			result.add(uri);
-		}
 		return result;
 	}
 	
@@ -121,14 +454,45 @@ public class Server implements HttpHandler{
 	 * 
 	 */
 	public void handle(HttpExchange ex){
+		String route = getRouteName(ex.getRequestURI().getPath());
+		long start = System.nanoTime();
+		boolean failed = false;
+		Metrics.requestStarted(route);
+		//both query routes execute pipelines in MongoDB, so they share one admission control to stay within the connection pool
+		AdmissionControl admission = admissionControls.computeIfAbsent(route.equals("explain") ? "query" : route, Server::createAdmissionControl);
+		int admissionResult = AdmissionControl.TIMED_OUT;
 		try {
+			admissionResult = admission.acquire();
+			if(admissionResult != AdmissionControl.ADMITTED) {
+				rejectRequest(ex, admissionResult);
+				Metrics.requestRejected(route);
+				return;
+			}
 			try{
 				if(ex.getRequestURI().getPath().equals(insertDescriptionPath)) {
-					new DescriptionParser().handleExchange(mongoUrl, ex);
+					if(asyncInsertDescription || "async=true".equals(ex.getRequestURI().getQuery())) {
+						ingestQueue.handleExchange(ex);
+					}else {
+						new DescriptionParser().handleExchange(mongoClient, ex);
+					}
+				}else if(ex.getRequestURI().getPath().equals(insertDescriptionsPath)) {
+					new BatchInserter().handleExchange(mongoClient, ex);
 				}else if(ex.getRequestURI().getPath().equals(queryPath)){
 					parseQuery(ex);
+				}else if(ex.getRequestURI().getPath().equals(explainPath)){
+					explainQuery(ex);
 				}else if(ex.getRequestURI().getPath().startsWith(descriptionPath)){
 					getOriginalDescription(ex);
+				}else if(ex.getRequestURI().getPath().startsWith(jobsPath)){
+					ingestQueue.getJob(ex);
+				}else if(ex.getRequestURI().getPath().equals(statsPath)){
+					getStatistics(ex);
+				}else if(ex.getRequestURI().getPath().equals(recomputeAncestorsPath)){
+					recomputeAncestors(ex);
+				}else if(ex.getRequestURI().getPath().equals(indexAdvisorPath)){
+					getIndexAdvice(ex);
+				}else if(ex.getRequestURI().getPath().equals(metricsPath)){
+					getMetrics(ex);
 				}else if(ex.getRequestURI().getPath().equals("/")) {
 					ex.getResponseHeaders().put("Content-Type", Arrays.asList("text/html; charset=UTF-8"));
 					ex.sendResponseHeaders(200, 0);
@@ -143,18 +507,96 @@ public class Server implements HttpHandler{
 			}
 		}catch (Exception e) {
 			//some error occured, return status code 400 and error message in response body
+			failed = true;
 			try {
 				ex.sendResponseHeaders(400, 0);
 			}catch (IOException exc) {
+				//the response has already started (e.g. while streaming results), so just end it
+				ex.close();
 				return;
 			}
 			PrintWriter p = new PrintWriter(ex.getResponseBody());
 			p.write(e.getMessage());
 			p.close();
 			ex.close();
+		}finally {
+			if(admissionResult == AdmissionControl.ADMITTED) {
+				admission.release();
+			}
+			Metrics.requestFinished(route, System.nanoTime() - start, failed);
+		}
+	}
+	
+	/**
+	 * Creates the admission control of a route with the limits configured for it
+	 * 
+	 * @param route the name of the route
+	 * @return the admission control
+	 * 
+	 */
+	static AdmissionControl createAdmissionControl(String route) {
+		switch(route) {
+			case "query":
+				return new AdmissionControl(queryMaxConcurrent, queryMaxQueued, admissionTimeoutMs);
+			case "insertDescription":
+			case "insertDescriptions":
+				return new AdmissionControl(insertMaxConcurrent, insertMaxQueued, admissionTimeoutMs);
+			default:
+				return new AdmissionControl(otherMaxConcurrent, otherMaxQueued, admissionTimeoutMs);
 		}
 	}
 	
+	/**
+	 * Rejects a request that was not admitted, asking the client to retry later
+	 * 
+	 * @param ex the HttpExchange object of the HTTP request
+	 * @param status the status code of the response, 429 if the queue of the route is full or 503 if the request waited too long
+	 * 
+	 */
+	static void rejectRequest(HttpExchange ex, int status) throws IOException {
+		ex.getResponseHeaders().put("Retry-After", Arrays.asList(String.valueOf(retryAfterSeconds)));
+		ex.getResponseHeaders().put("Content-Type", Arrays.asList("text/plain; charset=UTF-8"));
+		ex.sendResponseHeaders(status, 0);
+		PrintWriter p = new PrintWriter(new OutputStreamWriter(ex.getResponseBody(), StandardCharsets.UTF_8));
+		p.write(status == AdmissionControl.QUEUE_FULL ? "Too many requests, try again later" : "Server is overloaded, try again later");
+		p.close();
+		ex.close();
+	}
+	
+	/**
+	 * Returns the name of the route of a request, used as a label of its metrics
+	 * 
+	 * @param path the path of the request
+	 * @return the name of the route
+	 * 
+	 */
+	static String getRouteName(String path) {
+		if(path.equals(insertDescriptionPath)) {
+			return "insertDescription";
+		}else if(path.equals(insertDescriptionsPath)) {
+			return "insertDescriptions";
+		}else if(path.equals(queryPath)) {
+			return "query";
+		}else if(path.equals(explainPath)) {
+			return "explain";
+		}else if(path.startsWith(descriptionPath)) {
+			return "description";
+		}else if(path.startsWith(jobsPath)) {
+			return "jobs";
+		}else if(path.equals(statsPath)) {
+			return "stats";
+		}else if(path.equals(recomputeAncestorsPath)) {
+			return "recomputeAncestors";
+		}else if(path.equals(indexAdvisorPath)) {
+			return "indexAdvisor";
+		}else if(path.equals(metricsPath)) {
+			return "metrics";
+		}else if(path.equals("/")) {
+			return "index";
+		}
+		return "notFound";
+	}
+	
 	/**
 	 * Translates OAQL2 query to a MongoDB pipeline, executes the search and returns the result. 
 	 * Also prints total execution time and number of results
@@ -162,72 +604,354 @@ public class Server implements HttpHandler{
 	 * @param ex the HttpExchange object of the HTTP request to execute a query
 	 * 
 	 */
-	@SuppressWarnings("deprecation")
 	public void parseQuery(HttpExchange ex) throws Exception {
 		long startTime = System.currentTimeMillis();
+		Metrics.QueryPhases phases = new Metrics.QueryPhases();
 		
 		//only accept POST requests
 		if(!ex.getRequestMethod().equals("POST")){
 			throw new Exception("Only supporting POST requests");
 		}
 		
-		JSONArray responseArr = new JSONArray();
-		
-		//give OAQL2 query to the parser and receive the MongoDB pipeline
-		InputStreamReader input = new InputStreamReader(ex.getRequestBody()); 
-		ArrayList<String> exclusionList = new ArrayList<String>();
-		ArrayList<Document> pipeline = new Parser(new Lexer(input)).getPipeline(exclusionList);
+		//get the MongoDB pipeline of the OAQL2 query from the plan cache or the parser
+		InputStream input = ex.getRequestBody();
+		String query = new String(input.readAllBytes(), StandardCharsets.UTF_8);
 		input.close();
+		Metrics.resetSemanticTime();
+		QueryPlan plan = planCache.getPlan(query);
+		phases.end(Metrics.PARSE);
+		phases.move(Metrics.PARSE, Metrics.SEMANTIC, Metrics.resetSemanticTime());
+		ArrayList<Document> pipeline = plan.pipeline;
+		ArrayList<String> exclusionList = plan.exclusionList;
 		
-		//execute query
-		MongoClient cli = MongoClients.create(mongoUrl);
-		MongoDatabase db = cli.getDatabase(Server.dbName);
-		MongoCollection<Document> coll = db.getCollection(Server.collectionName);
-		for(Document doc : coll.aggregate(pipeline).allowDiskUse(true)) {
-			JSONObject newobj = new JSONObject();
-			
-			//flatten any objects corresponding to <table>.* in SELECT clause
-			for(String s : exclusionList) {
-				Object obj = doc.remove(s);
-				if(obj == null) {
-					continue;	
+		//return the cached response if the query was executed after the last insertion, the generation is read first so that
+		//a response is not cached if an insertion happens while it is created
+		boolean gzip = HttpCompression.acceptsGzip(ex);
+		String cacheKey = null;
+		long generation = ResultCache.generation();
+		if(resultCache.isEnabled()) {
+			cacheKey = ResultCache.key(plan);
+			ResultCache.Entry cached = resultCache.get(cacheKey);
+			if(cached != null) {
+				if(cached.continuationToken != null) {
+					ex.getResponseHeaders().put("X-Continuation-Token", Arrays.asList(cached.continuationToken));
+				}
+				HttpCompression.sendHeaders(ex, "application/json", gzip);
+				OutputStream os = HttpCompression.body(ex, gzip);
+				os.write(cached.body);
+				os.close();
+				ex.close();
+				phases.end(Metrics.SERIALIZATION);
+				Metrics.recordQuery(phases, cached.resultsNum);
+				System.out.println("time: " + (System.currentTimeMillis() - startTime) + "ms, number of results: " + cached.resultsNum + " (cached)");
+				return;
+			}
+		}
+		
+		//execute query in memory if possible, otherwise in MongoDB, where the first batch is fetched here so that errors are reported before the response is started
+		//the pipeline stops after the rows allowed by the budget of the query, and MongoDB stops it after queryMaxTimeMs
+		QueryBudget budget = new QueryBudget(queryMaxResultRows, queryMaxResponseBytes);
+		ArrayList<Document> budgetPipeline = budget.limit(pipeline);
+		boolean inMemory = memoryEngine != null && MemoryEngine.supports(plan);
+		Iterator<Document> cursor;
+		if(inMemory) {
+			cursor = memoryEngine.execute(budgetPipeline, queryMaxTimeMs);
+		}else {
+			MongoDatabase db = mongoClient.getDatabase(Server.dbName);
+			MongoCollection<Document> coll = db.getCollection(plan.collection);
+			try {
+				cursor = coll.aggregate(budgetPipeline).allowDiskUse(true).maxTime(queryMaxTimeMs, TimeUnit.MILLISECONDS).batchSize(queryBatchSize).iterator();
+			}catch(MongoExecutionTimeoutException e) {
+				throw new Exception("Query exceeded the time limit of " + queryMaxTimeMs + "ms");
+			}
+		}
+		phases.end(Metrics.EXECUTION);
+		
+		int resultsNum = 0;
+		String next = null;
+		OutputStream body = HttpCompression.body(ex, gzip);
+		ResultCache.Capture capture = null;
+		if(cacheKey != null) {
+			body = capture = resultCache.capture(body);
+		}
+		body = budget.count(body);
+		try {
+			int rows = 0;
+			if(plan.page != null && plan.page.containsKey("keyset")) {
+				//a page of results is collected first, since its continuation token is sent in a header, so only its rows are limited
+				ContinuationToken token = new ContinuationToken(plan.page);
+				JSONArray responseArr = new JSONArray();
+				while(cursor.hasNext()) {
+					if(!budget.allows(rows)) {
+						token.truncate();
+						break;
+					}
+					Document doc = cursor.next();
+					rows++;
+					phases.end(Metrics.EXECUTION);
+					token.add(doc);
+					JSONObject newobj = shapeRow(doc, exclusionList);
+					if(newobj != null) {
+						responseArr.put(newobj);
+					}
+					phases.end(Metrics.SHAPING);
+				}
+				phases.end(Metrics.EXECUTION);
+				resultsNum = responseArr.length();
+				next = token.getToken();
+				if(next != null) {
+					ex.getResponseHeaders().put("X-Continuation-Token", Arrays.asList(next));
+				}
+				HttpCompression.sendHeaders(ex, "application/json", gzip);
+				Writer w = new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+				w.write('[');
+				for(int i = 0; i < resultsNum; i++) {
+					if(i > 0) {
+						w.write(',');
+					}
+					responseArr.getJSONObject(i).write(w);
+				}
+				budget.writeMarker(w, resultsNum == 0);
+				w.write(']');
+				w.close();
+			}else if(streamQueryResults) {
+				//return status code 200 and write each result to the chunked response body as soon as it is received
+				HttpCompression.sendHeaders(ex, "application/json", gzip);
+				Writer w = new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+				w.write('[');
+				try {
+					while(cursor.hasNext()) {
+						if(!budget.allows(rows)) {
+							break;
+						}
+						Document doc = cursor.next();
+						rows++;
+						phases.end(Metrics.EXECUTION);
+						JSONObject newobj = shapeRow(doc, exclusionList);
+						phases.end(Metrics.SHAPING);
+						if(newobj != null) {
+							if(resultsNum > 0) {
+								w.write(',');
+							}
+							newobj.write(w);
+							resultsNum++;
+						}
+						if(queryBatchSize > 0 && rows % queryBatchSize == 0) {
+							//each batch is sent to the client before the next one is received
+							w.flush();
+						}
+						phases.end(Metrics.SERIALIZATION);
+					}
+				}catch(MongoExecutionTimeoutException | MemoryEngine.TimeLimitException e) {
+					//the response has already started, so the results written so far are returned as truncated
+					budget.timedOut();
 				}
-				Document tmp = (Document)obj;
-				for(Entry<String, Object> e : tmp.entrySet()) {
-					Object tmpval = e.getValue();
-					if(tmpval != null) {
-						newobj.put(s + "." + e.getKey(), tmpval);
+				phases.end(Metrics.EXECUTION);
+				budget.writeMarker(w, resultsNum == 0);
+				w.write(']');
+				w.close();
+			}else {
+				//collect all results and return status code 200 with the resulting array
+				JSONArray responseArr = new JSONArray();
+				while(cursor.hasNext()) {
+					if(!budget.allows(rows)) {
+						break;
 					}
+					Document doc = cursor.next();
+					rows++;
+					phases.end(Metrics.EXECUTION);
+					JSONObject newobj = shapeRow(doc, exclusionList);
+					if(newobj != null) {
+						responseArr.put(newobj);
+					}
+					phases.end(Metrics.SHAPING);
+				}
+				phases.end(Metrics.EXECUTION);
+				HttpCompression.sendHeaders(ex, "application/json", gzip);
+				Writer w = new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+				w.write('[');
+				for(int i = 0; i < responseArr.length() && budget.allowsBytes(); i++) {
+					if(i > 0) {
+						w.write(',');
+					}
+					responseArr.getJSONObject(i).write(w);
+					resultsNum++;
 				}
+				budget.writeMarker(w, resultsNum == 0);
+				w.write(']');
+				w.close();
 			}
-			
-			//replace @ with . in keys of fields
-			for(Entry<String, Object> e : doc.entrySet()) {
-				Object tmp = e.getValue();
-				if(tmp != null) {
-					newobj.put(e.getKey().replace('@', '.'), tmp);
+		}catch(MongoExecutionTimeoutException e) {
+			throw new Exception("Query exceeded the time limit of " + queryMaxTimeMs + "ms");
+		}finally {
+			//closing the cursor also kills it in MongoDB or stops the memory engine, when the query failed or writing failed because the client disconnected
+			if(cursor instanceof Closeable) {
+				((Closeable)cursor).close();
+			}
+		}
+		ex.close();
+		if(capture != null && !budget.isTruncated()) {
+			resultCache.put(cacheKey, capture, next, resultsNum, generation);
+		}
+		phases.end(Metrics.SERIALIZATION);
+		Metrics.recordQuery(phases, resultsNum);
+		
+		//print execution time and number of results in stdout
+		long endTime = System.currentTimeMillis();
+		if(!inMemory) {
+			indexAdvisor.record(plan.collection, pipeline, endTime - startTime);
+		}
+		System.out.println("time: " + (endTime - startTime) + "ms, number of results: " + resultsNum + (inMemory ? " (in memory)" : "") + (budget.isTruncated() ? " (truncated)" : ""));
+	}
+	
+	/**
+	 * Translates an OAQL2 query without using the plan cache, executes it and returns the pipeline, the semantic expansions,
+	 * the execution statistics of MongoDB and the time spent in each step, instead of the results. The query is executed
+	 * by the same engine and with the same limits as in parseQuery, so only MongoDB runs it once more for its statistics
+	 * 
+	 * @param ex the HttpExchange object of the HTTP request to explain a query
+	 * 
+	 */
+	@SuppressWarnings("deprecation")
+	public void explainQuery(HttpExchange ex) throws Exception {
+		//only accept POST requests
+		if(!ex.getRequestMethod().equals("POST")){
+			throw new Exception("Only supporting POST requests");
+		}
+		InputStream input = ex.getRequestBody();
+		String query = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+		input.close();
+		
+		//the parser reads tokens from the lexer while parsing, so their time is measured together
+		long parseStart = System.nanoTime();
+		Lexer lexer = new Lexer(new StringReader(query));
+		Parser parser = new Parser(lexer);
+		ArrayList<String> exclusionList = new ArrayList<String>();
+		ArrayList<Document> pipeline = parser.getPipeline(exclusionList);
+		long parseTime = System.nanoTime() - parseStart;
+		
+		//the query is executed like parseQuery, in memory if possible and with the budget and time limit of queries
+		QueryPlan plan = new QueryPlan(parser.getCollection(), pipeline, exclusionList, 0);
+		QueryBudget budget = new QueryBudget(queryMaxResultRows, 0);
+		ArrayList<Document> budgetPipeline = budget.limit(pipeline);
+		boolean inMemory = memoryEngine != null && MemoryEngine.supports(plan);
+		
+		//get the statistics of MongoDB, which runs the pipeline once more for them
+		Document explain = null;
+		Iterator<Document> cursor;
+		long start = System.nanoTime();
+		try {
+			if(inMemory) {
+				cursor = memoryEngine.execute(budgetPipeline, queryMaxTimeMs);
+			}else {
+				MongoCollection<Document> coll = mongoClient.getDatabase(Server.dbName).getCollection(plan.collection);
+				explain = coll.aggregate(budgetPipeline).allowDiskUse(true).maxTime(queryMaxTimeMs, TimeUnit.MILLISECONDS).explain(ExplainVerbosity.EXECUTION_STATS);
+				start = System.nanoTime();
+				cursor = coll.aggregate(budgetPipeline).allowDiskUse(true).maxTime(queryMaxTimeMs, TimeUnit.MILLISECONDS).batchSize(queryBatchSize).iterator();
+			}
+		}catch(MongoExecutionTimeoutException | MemoryEngine.TimeLimitException e) {
+			throw new Exception("Query exceeded the time limit of " + queryMaxTimeMs + "ms");
+		}
+		
+		//measure separately the time waiting for the engine and the time shaping rows
+		long executionTime = 0;
+		long shapingTime = 0;
+		int rowsNum = 0;
+		int resultsNum = 0;
+		try {
+			while(cursor.hasNext()) {
+				if(!budget.allows(rowsNum)) {
+					break;
 				}
+				Document doc = cursor.next();
+				long shapeStart = System.nanoTime();
+				executionTime += shapeStart - start;
+				rowsNum++;
+				if(shapeRow(doc, exclusionList) != null) {
+					resultsNum++;
+				}
+				start = System.nanoTime();
+				shapingTime += start - shapeStart;
 			}
-			
-			//add object to result if it is not empty
-			if(newobj.length() > 0) {
-				responseArr.put(newobj);
+			executionTime += System.nanoTime() - start;
+		}catch(MongoExecutionTimeoutException | MemoryEngine.TimeLimitException e) {
+			throw new Exception("Query exceeded the time limit of " + queryMaxTimeMs + "ms");
+		}finally {
+			if(cursor instanceof Closeable) {
+				((Closeable)cursor).close();
 			}
-			
 		}
-		cli.close();
 		
-		//return status code 200 with the resulting array
+		JSONArray stages = new JSONArray();
+		for(Document d : pipeline) {
+			stages.put(new JSONObject(d.toJson()));
+		}
+		JSONArray expansions = new JSONArray();
+		for(Document d : parser.getSemanticExpansions()) {
+			expansions.put(new JSONObject(d.toJson()));
+		}
+		JSONObject response = new JSONObject()
+				.put("collection", parser.getCollection())
+				.put("pipeline", stages)
+				.put("semanticExpansions", expansions)
+				.put("engine", inMemory ? "memory" : "mongodb")
+				.put("executionStats", explain == null ? JSONObject.NULL : new JSONObject(explain.toJson()))
+				.put("rows", rowsNum)
+				.put("results", resultsNum)
+				.put("truncated", budget.isTruncated())
+				.put("timeMs", new JSONObject()
+						.put("parsing", parseTime / 1e6)
+						.put("execution", executionTime / 1e6)
+						.put("shaping", shapingTime / 1e6));
+		
+		//return status code 200 and the explanation in the response body
 		ex.getResponseHeaders().put("Content-Type", Arrays.asList("application/json"));
 		ex.sendResponseHeaders(200, 0);
 		PrintWriter p = new PrintWriter(ex.getResponseBody());
-		p.write(responseArr.toString());
+		p.write(response.toString());
 		p.close();
 		ex.close();
+	}
+	
+	/**
+	 * Converts a document returned by MongoDB to an object of the query result
+	 * 
+	 * @param doc a document produced by the MongoDB pipeline
+	 * @param exclusionList the list of tables given in SELECT with ".*" suffix
+	 * @return the object to be added to the result or null if it is empty
+	 * 
+	 */
+	static JSONObject shapeRow(Document doc, ArrayList<String> exclusionList) {
+		JSONObject newobj = new JSONObject();
 		
-		//print execution time and number of results in stdout
-		long endTime = System.currentTimeMillis();
-		System.out.println("time: " + (endTime - startTime) + "ms, number of results: " + responseArr.length());
+		//flatten any objects corresponding to <table>.* in SELECT clause
+		for(String s : exclusionList) {
+			Object obj = doc.remove(s);
+			if(obj == null) {
+				continue;	
+			}
+			Document tmp = (Document)obj;
+			for(Entry<String, Object> e : tmp.entrySet()) {
+				Object tmpval = e.getValue();
+				if(tmpval != null) {
+					newobj.put(s + "." + e.getKey(), tmpval);
+				}
+			}
+		}
+		
+		//replace @ with . in keys of fields
+		for(Entry<String, Object> e : doc.entrySet()) {
+			Object tmp = e.getValue();
+			if(tmp != null) {
+				newobj.put(e.getKey().replace('@', '.'), tmp);
+			}
+		}
+		
+		//an empty object is not added to the result
+		if(newobj.length() == 0) {
+			return null;
+		}
+		return newobj;
 	}
 	
 	/**
@@ -248,26 +972,220 @@ public class Server implements HttpHandler{
 			throw new Exception("id needs to be 24 characters long");
 		}
 		
-		//find the OpenAPI description in MongoDB with the specified id
-		MongoClient cli = MongoClients.create(mongoUrl);
-		MongoDatabase db = cli.getDatabase(dbName);
+		//descriptions never change after insertion, so a client that has the ETag of an existing id already has the description
+		boolean gzip = HttpCompression.acceptsGzip(ex);
+		String etag = "\"" + id + (gzip ? "-gzip" : "") + "\"";
+		String ifNoneMatch = ex.getRequestHeaders().getFirst("If-None-Match");
+		boolean notModified = matchesETag(ifNoneMatch, etag) || (ifNoneMatch != null && ifNoneMatch.trim().equals("*"));
+		
+		//find the OpenAPI description in MongoDB with the specified id, only checking that it exists if the client has it
+		MongoDatabase db = mongoClient.getDatabase(dbName);
 		MongoCollection<Document> coll = db.getCollection(originalDescriptionsCollectionName);
-		Document res = coll.find(new Document("_id", new ObjectId(id))).projection(new Document("_id", 0)).first();
+		Document res = coll.find(new Document("_id", new ObjectId(id))).projection(notModified ? new Document("_id", 1) : new Document("_id", 0)).first();
 		
 		if(res == null) {
 			//return status code 404 because no description was found with this id
 			ex.sendResponseHeaders(404, -1); 
+		}else if(notModified) {
+			//return status code 304 because the client already has the description
+			sendNotModified(ex, etag);
+			return;
 		}else {
 			//return status code 200 and the description that was found in the response body
-			ex.getResponseHeaders().put("Content-Type", Arrays.asList("application/json"));
-			ex.sendResponseHeaders(200, 0);
-			PrintWriter p = new PrintWriter(ex.getResponseBody());
+			ex.getResponseHeaders().put("ETag", Arrays.asList(etag));
+			ex.getResponseHeaders().put("Cache-Control", Arrays.asList("public, max-age=" + descriptionMaxAgeSeconds + ", immutable"));
+			HttpCompression.sendHeaders(ex, "application/json", gzip);
+			PrintWriter p = new PrintWriter(new OutputStreamWriter(HttpCompression.body(ex, gzip), StandardCharsets.UTF_8));
 			p.write(res.toJson());
 			p.close();
 		}
 		ex.close();
 	}
 	
+	/**
+	 * Checks if the If-None-Match header of a request lists the ETag of the response
+	 * 
+	 * @param header the If-None-Match header, or null
+	 * @param etag the ETag of the response
+	 * @return true if the header lists the ETag, compared weakly as required for If-None-Match
+	 * 
+	 */
+	static boolean matchesETag(String header, String etag) {
+		if(header == null) {
+			return false;
+		}
+		for(String tag : header.split(",")) {
+			tag = tag.trim();
+			if(tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if(tag.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Responds with status code 304 to a conditional request for an OpenAPI description that the client already has
+	 * 
+	 * @param ex the HttpExchange object of the HTTP request
+	 * @param etag the ETag of the description
+	 * 
+	 */
+	static void sendNotModified(HttpExchange ex, String etag) throws IOException {
+		ex.getResponseHeaders().put("ETag", Arrays.asList(etag));
+		ex.getResponseHeaders().put("Cache-Control", Arrays.asList("public, max-age=" + descriptionMaxAgeSeconds + ", immutable"));
+		if(compressResponses) {
+			ex.getResponseHeaders().put("Vary", Arrays.asList("Accept-Encoding"));
+		}
+		ex.sendResponseHeaders(304, -1);
+		ex.close();
+	}
+	
+	/**
+	 * Returns statistics about the server
+	 * 
+	 * @param ex the HttpExchange object of the HTTP request to retrieve the statistics
+	 * 
+	 */
+	public void getStatistics(HttpExchange ex) throws Exception{
+		//only accept GET requests
+		if(!ex.getRequestMethod().equals("GET")){
+			throw new Exception("Only supporting GET requests");
+		}
+		
+		JSONObject stats = new JSONObject();
+		stats.put("connectionPool", poolStatistics.toJSON());
+		stats.put("planCache", planCache.toJSON());
+		stats.put("resultCache", resultCache.toJSON());
+		stats.put("ingestQueue", ingestQueue.toJSON());
+		JSONObject admission = new JSONObject();
+		for(Entry<String, AdmissionControl> e : admissionControls.entrySet()) {
+			admission.put(e.getKey(), e.getValue().toJSON());
+		}
+		stats.put("admission", admission);
+		if(memoryEngine != null) {
+			stats.put("memoryEngine", memoryEngine.toJSON());
+		}
+		
+		//return status code 200 and the statistics in the response body
+		ex.getResponseHeaders().put("Content-Type", Arrays.asList("application/json"));
+		ex.sendResponseHeaders(200, 0);
+		PrintWriter p = new PrintWriter(ex.getResponseBody());
+		p.write(stats.toString());
+		p.close();
+		ex.close();
+	}
+	
+	/**
+	 * Reloads the semantic model and recomputes the ancestors of semantic annotations in all metadata objects, after the
+	 * semantic model has changed
+	 * 
+	 * @param ex the HttpExchange object of the HTTP request
+	 * 
+	 */
+	public void recomputeAncestors(HttpExchange ex) throws Exception {
+		//only accept POST requests
+		if(!ex.getRequestMethod().equals("POST")){
+			throw new Exception("Only supporting POST requests");
+		}
+		
+		long startTime = System.currentTimeMillis();
+		loadSemanticModel();
+		planCache.clear();
+		MongoDatabase db = mongoClient.getDatabase(Server.dbName);
+		long updated = SemanticAncestors.recompute(db.getCollection(Server.collectionName));
+		if(useTableCollections) {
+			TableCollections.recomputeAncestors(db);
+		}
+		storeSemanticModelFingerprint(db, getSemanticModelFingerprint());
+		if(memoryEngine != null) {
+			memoryEngine.load(db.getCollection(Server.collectionName));
+		}
+		ResultCache.invalidate();
+		
+		//return status code 200 and the number of updated metadata objects in the response body
+		ex.getResponseHeaders().put("Content-Type", Arrays.asList("application/json"));
+		ex.sendResponseHeaders(200, 0);
+		PrintWriter p = new PrintWriter(ex.getResponseBody());
+		p.write(new JSONObject().put("updated", updated).toString());
+		p.close();
+		ex.close();
+		System.out.println("Recomputed semantic ancestors of " + updated + " metadata objects in " + (System.currentTimeMillis() - startTime) + "ms");
+	}
+	
+	/**
+	 * Adds the ancestors of semantic annotations to metadata objects stored without them, e.g. by a previous version of
+	 * the server, since queries only match the ancestors once they are used. The ancestors of all metadata objects are
+	 * recomputed if they were computed with a different semantic model, which is found by its fingerprint
+	 */
+	public void migrateAncestors() {
+		long startTime = System.currentTimeMillis();
+		MongoDatabase db = mongoClient.getDatabase(Server.dbName);
+		MongoCollection<Document> coll = db.getCollection(Server.collectionName);
+		String fingerprint = getSemanticModelFingerprint();
+		Document stored = db.getCollection(semanticModelCollectionName).find(new Document("_id", "ancestors")).first();
+		long updated = SemanticAncestors.migrate(coll);
+		if(updated < 0) {
+			if(stored != null && fingerprint.equals(stored.getString("fingerprint"))) {
+				return;
+			}
+			//the semantic model changed since the ancestors were stored, or the model they were stored with is unknown
+			updated = SemanticAncestors.annotateAll(coll);
+		}
+		if(useTableCollections) {
+			TableCollections.recomputeAncestors(db);
+		}
+		storeSemanticModelFingerprint(db, fingerprint);
+		System.out.println("Stored semantic ancestors in " + updated + " metadata objects in " + (System.currentTimeMillis() - startTime) + "ms");
+	}
+	
+	/**
+	 * Returns the report of the index advisor. A POST request runs its analysis first
+	 * 
+	 * @param ex the HttpExchange object of the HTTP request
+	 * 
+	 */
+	public void getIndexAdvice(HttpExchange ex) throws Exception {
+		//only accept GET and POST requests
+		if(ex.getRequestMethod().equals("POST")){
+			indexAdvisor.analyze();
+		}else if(!ex.getRequestMethod().equals("GET")){
+			throw new Exception("Only supporting GET and POST requests");
+		}
+		
+		//return status code 200 and the report in the response body
+		ex.getResponseHeaders().put("Content-Type", Arrays.asList("application/json"));
+		ex.sendResponseHeaders(200, 0);
+		PrintWriter p = new PrintWriter(ex.getResponseBody());
+		p.write(indexAdvisor.toJSON().toString());
+		p.close();
+		ex.close();
+	}
+	
+	/**
+	 * Returns the request counts, latency histograms, query phase histograms and insertion counts of the server
+	 * in the Prometheus text format
+	 * 
+	 * @param ex the HttpExchange object of the HTTP request
+	 * 
+	 */
+	public void getMetrics(HttpExchange ex) throws Exception {
+		//only accept GET requests
+		if(!ex.getRequestMethod().equals("GET")){
+			throw new Exception("Only supporting GET requests");
+		}
+		
+		//return status code 200 and the metrics in the response body
+		ex.getResponseHeaders().put("Content-Type", Arrays.asList("text/plain; version=0.0.4; charset=UTF-8"));
+		ex.sendResponseHeaders(200, 0);
+		PrintWriter p = new PrintWriter(ex.getResponseBody());
+		p.write(Metrics.toPrometheus());
+		p.close();
+		ex.close();
+	}
+	
 	/**
 	 * Creates the specified indexes in MongoDB if they do not already exist
 	 * 
@@ -276,9 +1194,8 @@ public class Server implements HttpHandler{
 	 */
 	public boolean createIndexes() {
 		try {
-			//connect to MongoDB
-			MongoClient cli = MongoClients.create(mongoUrl);
-			MongoDatabase db = cli.getDatabase(Server.dbName);
+			//get collection from MongoDB
+			MongoDatabase db = mongoClient.getDatabase(Server.dbName);
 			MongoCollection<Document> coll = db.getCollection(Server.collectionName);
 			
 			//get a list of existing indexes
@@ -290,7 +1207,9 @@ public class Server implements HttpHandler{
 					coll.createIndex(new Document(p, 1));
 				}
 			}
-			cli.close();
+			if(useTableCollections) {
+				TableCollections.createIndexes(db);
+			}
 		}catch(Exception e) {
 			//an error probably means that the MongoDB service has not started running yet
 			System.out.println("Attempt to connect to Mongo failed. Retrying...");
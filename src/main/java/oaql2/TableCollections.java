@@ -0,0 +1,177 @@
+/** @file TableCollections.java */
+
+package oaql2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Optional storage mode where, besides the metadata objects, every row of every table is stored in a collection of its table.
+ * Each row keeps the fields of its object without the arrays of child tables, plus the id of its parent row, the id of its
+ * description and the sequence of tables leading to it, so that a query can start from the collection of its top table and
+ * join only the tables it needs with $lookup
+ */
+public class TableCollections {
+
+	/** Fields added to each row, which are not part of the metadata object */
+	static String[] internalFields = {"_id", "_parentId", "_serviceId", "_path"};
+
+	/**
+	 * Returns the name of the collection holding the rows of a table
+	 * 
+	 * @param table the name of the table
+	 * @return the name of the collection
+	 * 
+	 */
+	public static String collectionName(String table) {
+		return Server.tableCollectionPrefix + table;
+	}
+
+	/**
+	 * Returns the projection that removes the internal fields and the ancestors of semantic annotations from a row,
+	 * used for tables given in SELECT with ".*" suffix
+	 * 
+	 * @return an object to use in a project stage
+	 * 
+	 */
+	public static Document exclusionProjection() {
+		Document result = new Document();
+		for(String f : internalFields) {
+			result.append(f, 0);
+		}
+		for(String f : SemanticAncestors.annotatedFields) {
+			result.append(SemanticAncestors.ancestorsField(f), 0);
+		}
+		for(String f : SemanticAncestors.properAnnotatedFields) {
+			result.append(SemanticAncestors.properAncestorsField(f), 0);
+		}
+		return result;
+	}
+
+	/**
+	 * Splits a metadata object to the rows of each table
+	 * 
+	 * @param metadata the metadata object, as stored in the metadata collection
+	 * @return the rows of each table found in the metadata object
+	 * 
+	 */
+	public static HashMap<String, ArrayList<Document>> shred(Document metadata) {
+		HashMap<String, ArrayList<Document>> result = new HashMap<String, ArrayList<Document>>();
+		for(Document service : metadata.getList("Service", Document.class)) {
+			ObjectId serviceId = new ObjectId(service.getString("id"));
+			shred("Service", service, null, "Service", serviceId, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Creates the row of an object and the rows of its children recursively
+	 * 
+	 * @param table the table of the object
+	 * @param obj the object
+	 * @param parentId the id of the row of the parent object or null for a Service
+	 * @param path the sequence of tables leading to the object, separated with "."
+	 * @param serviceId the id of the original description
+	 * @param result the rows of each table found so far
+	 * 
+	 */
+	private static void shred(String table, Document obj, ObjectId parentId, String path, ObjectId serviceId, HashMap<String, ArrayList<Document>> result) {
+		ObjectId id = new ObjectId();
+		Document row = new Document("_id", id)
+				.append("_parentId", parentId)
+				.append("_serviceId", serviceId)
+				.append("_path", path);
+		result.computeIfAbsent(table, k -> new ArrayList<Document>()).add(row);
+		for(Entry<String, Object> e : obj.entrySet()) {
+			//arrays of child tables become rows of their own collection
+			if(e.getValue() instanceof List && Model.tablePairs.contains(table + "." + e.getKey())) {
+				for(Object child : (List<?>)e.getValue()) {
+					if(child instanceof Document) {
+						shred(e.getKey(), (Document)child, id, path + "." + e.getKey(), serviceId, result);
+					}
+				}
+			}else {
+				row.append(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Inserts the rows of metadata objects into the collections of their tables
+	 * 
+	 * @param db the database of the server
+	 * @param metadata the metadata objects that were inserted into the metadata collection
+	 * 
+	 */
+	public static void insert(MongoDatabase db, List<Document> metadata) {
+		HashMap<String, ArrayList<Document>> rows = new HashMap<String, ArrayList<Document>>();
+		for(Document doc : metadata) {
+			for(Entry<String, ArrayList<Document>> e : shred(doc).entrySet()) {
+				rows.computeIfAbsent(e.getKey(), k -> new ArrayList<Document>()).addAll(e.getValue());
+			}
+		}
+		for(Entry<String, ArrayList<Document>> e : rows.entrySet()) {
+			db.getCollection(collectionName(e.getKey())).insertMany(e.getValue(), new InsertManyOptions().ordered(false));
+		}
+	}
+
+	/**
+	 * Deletes the rows of metadata objects from the collections of their tables
+	 * 
+	 * @param db the database of the server
+	 * @param serviceIds the ids of the descriptions of the metadata objects
+	 * 
+	 */
+	public static void delete(MongoDatabase db, List<ObjectId> serviceIds) {
+		for(String table : Model.tables.keySet()) {
+			db.getCollection(collectionName(table)).deleteMany(new Document("_serviceId", new Document("$in", serviceIds)));
+		}
+	}
+
+	/**
+	 * Creates the indexes used to join rows and the indexes of Model.indexPaths on the collection of their table
+	 * 
+	 * @param db the database of the server
+	 * 
+	 */
+	public static void createIndexes(MongoDatabase db) {
+		HashMap<String, LinkedHashSet<String>> fields = new HashMap<String, LinkedHashSet<String>>();
+		for(String table : Model.tables.keySet()) {
+			fields.put(table, new LinkedHashSet<String>(List.of("_parentId", "_serviceId")));
+		}
+		//the last table of an index path is the collection and the rest of the path is not needed
+		for(String p : Model.indexPaths) {
+			String[] parts = p.split("\\.");
+			fields.get(parts[parts.length - 2]).add(parts[parts.length - 1]);
+		}
+		for(Entry<String, LinkedHashSet<String>> e : fields.entrySet()) {
+			MongoCollection<Document> coll = db.getCollection(collectionName(e.getKey()));
+			for(String f : e.getValue()) {
+				coll.createIndex(new Document(f, 1));
+			}
+		}
+	}
+
+	/**
+	 * Recomputes the ancestors of semantic annotations in the rows of all tables
+	 * 
+	 * @param db the database of the server
+	 * @return the number of rows that were updated
+	 * 
+	 */
+	public static long recomputeAncestors(MongoDatabase db) {
+		long updated = 0;
+		for(String table : Model.tables.keySet()) {
+			updated += SemanticAncestors.annotateAll(db.getCollection(collectionName(table)));
+		}
+		return updated;
+	}
+}